@@ -7,6 +7,7 @@ import android.net.NetworkInfo;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import fr.inria.tyrex.senslogs.control.FlightRecorder;
 import fr.inria.tyrex.senslogs.control.LogsManager;
@@ -78,9 +79,12 @@ public class Application extends android.app.Application {
             logFiles.add(log.getZipFile());
         }
 
+        // Flight recorder zips not sent yet are kept with their folders
+        Set<File> pendingFiles = mFlightRecorder.getPendingFiles();
+
         for (File child : getFilesDir().listFiles())
             if (!logFiles.contains(child))
-                deleteRecursive(child);
+                deleteRecursive(child, pendingFiles);
     }
 
     public void clearAll() {
@@ -98,4 +102,21 @@ public class Application extends android.app.Application {
         }
     }
 
+    // Delete recursively except files to keep and their parent folders
+    private static void deleteRecursive(File fileOrDirectory, Set<File> filesToKeep) {
+        if (filesToKeep.contains(fileOrDirectory))
+            return;
+
+        if (fileOrDirectory.isDirectory())
+            for (File child : fileOrDirectory.listFiles())
+                deleteRecursive(child, filesToKeep);
+
+        if (fileOrDirectory.isDirectory() && fileOrDirectory.list().length > 0)
+            return;
+
+        if(!fileOrDirectory.delete()) {
+            android.util.Log.e(Application.LOG_TAG, "Cannot delete log file");
+        }
+    }
+
 }
@@ -0,0 +1,157 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Battery state shared by the whole application.
+ * The battery broadcast is received by a single receiver while the monitor is used, and each
+ * change is published as an immutable snapshot, so reading the state never needs an IPC.
+ */
+public class BatteryMonitor {
+
+    public final static int UNKNOWN = Integer.MIN_VALUE;
+
+    /**
+     * Battery state at a given time
+     */
+    public static class Snapshot {
+        // Elapsed realtime when the state has been received
+        public final long elapsedRealtimeNanos;
+        // Percentage of the full charge, -1 if unknown
+        public final int level;
+        // Celsius degrees
+        public final float temperature;
+        // Millivolts
+        public final int voltage;
+        // Microamperes, positive when charging, UNKNOWN if not available
+        public final int current;
+        public final boolean charging;
+
+        Snapshot(long elapsedRealtimeNanos, int level, float temperature, int voltage,
+                 int current, boolean charging) {
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+            this.level = level;
+            this.temperature = temperature;
+            this.voltage = voltage;
+            this.current = current;
+            this.charging = charging;
+        }
+
+        @Override
+        public String toString() {
+            return "BatteryMonitor.Snapshot{" +
+                    "level=" + level +
+                    ", temperature=" + temperature +
+                    ", voltage=" + voltage +
+                    ", current=" + current +
+                    ", charging=" + charging +
+                    '}';
+        }
+    }
+
+    public interface Listener {
+        void onBatteryChanged(Snapshot snapshot);
+    }
+
+    private static BatteryMonitor instance;
+
+    public static synchronized BatteryMonitor getInstance(Context context) {
+        if (instance == null) {
+            instance = new BatteryMonitor(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context mContext;
+    private final BatteryManager mBatteryManager;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private volatile Snapshot mSnapshot;
+    private int mUsers;
+
+    private BatteryMonitor(Context context) {
+        mContext = context;
+        mBatteryManager = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ?
+                (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE) : null;
+    }
+
+    /**
+     * Register the battery receiver for a new user, it is kept until every user has called
+     * {@link #release()}
+     */
+    public void acquire() {
+        Intent intent;
+        synchronized (this) {
+            if (mUsers++ > 0) return;
+            // The battery broadcast is sticky, the current state is returned immediately
+            intent = mContext.registerReceiver(mReceiver,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null,
+                    RecordingLoopers.getRadioHandler());
+        }
+        // Listeners are notified outside of the lock, they may take their own locks
+        if (intent != null) update(intent);
+    }
+
+    public synchronized void release() {
+        if (mUsers == 0 || --mUsers > 0) return;
+        mContext.unregisterReceiver(mReceiver);
+    }
+
+    /**
+     * Last known battery state, null before the first {@link #acquire()}
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void update(Intent intent) {
+        int rawLevel = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int level = rawLevel >= 0 && scale > 0 ? (rawLevel * 100) / scale : -1;
+
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0 ||
+                status == BatteryManager.BATTERY_STATUS_CHARGING;
+
+        int current = UNKNOWN;
+        if (mBatteryManager != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            current = mBatteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW);
+            // Some devices return 0 or Integer.MIN_VALUE when the property is not supported
+            if (current == 0) current = UNKNOWN;
+        }
+
+        Snapshot snapshot = new Snapshot(SystemClock.elapsedRealtimeNanos(), level,
+                intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) / 10f,
+                intent.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0),
+                current, charging);
+        mSnapshot = snapshot;
+
+        for (Listener listener : mListeners) {
+            listener.onBatteryChanged(snapshot);
+        }
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            update(intent);
+        }
+    };
+}
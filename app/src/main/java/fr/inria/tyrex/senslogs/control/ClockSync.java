@@ -0,0 +1,297 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fr.inria.tyrex.senslogs.Application;
+import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
+import fr.inria.tyrex.senslogs.model.log.Log;
+
+/**
+ * Relation between the elapsed realtime, which is the time base of records, and the other clocks
+ * of the device: wall clock, monotonic clock and GNSS time when locations are received.
+ * Clocks are sampled periodically during a record and each clock is fitted online by a linear
+ * model of the elapsed realtime, so drifts are known at any time without work on sensor events.
+ * Samples are written in a file of the record and models in the ini file.
+ */
+class ClockSync {
+
+    private final static String INI_SECTION_NAME = "ClockSync";
+
+    private final static String SOURCE_SYSTEM = "system";
+    private final static String SOURCE_GNSS = "gnss";
+
+    // Tries for each sample, the one with the smallest reading window is kept
+    private final static int SAMPLE_TRIES = 3;
+
+    /**
+     * Clocks read at the same time
+     */
+    static class Sample {
+        final String source;
+        final long elapsedRealtimeNanos;
+        // Not available for GNSS samples
+        final Long monotonicNanos;
+        // Wall clock or GNSS time
+        final long unixNanos;
+        final long uncertaintyNanos;
+
+        Sample(String source, long elapsedRealtimeNanos, Long monotonicNanos, long unixNanos,
+               long uncertaintyNanos) {
+            this.source = source;
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+            this.monotonicNanos = monotonicNanos;
+            this.unixNanos = unixNanos;
+            this.uncertaintyNanos = uncertaintyNanos;
+        }
+
+        Object[] toObject() {
+            return new Object[]{source, elapsedRealtimeNanos,
+                    monotonicNanos == null ? "" : monotonicNanos, unixNanos, uncertaintyNanos};
+        }
+    }
+
+    /**
+     * Online least squares fit of clock = elapsed + offsetAtStart + drift * (elapsed - start)
+     */
+    static class DriftModel {
+
+        private final long mStartElapsedNanos;
+        private long mFirstOffset;
+
+        private int mCount;
+        private double mSumT, mSumO, mSumTT, mSumTO;
+
+        DriftModel(long startElapsedNanos) {
+            mStartElapsedNanos = startElapsedNanos;
+        }
+
+        void add(long elapsedNanos, long clockNanos) {
+            long offset = clockNanos - elapsedNanos;
+            if (mCount == 0) {
+                mFirstOffset = offset;
+            }
+            // Offsets are centered on the first one to keep the precision of doubles
+            double t = (elapsedNanos - mStartElapsedNanos) / 1e9d;
+            double o = offset - mFirstOffset;
+            mCount++;
+            mSumT += t;
+            mSumO += o;
+            mSumTT += t * t;
+            mSumTO += t * o;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Nanoseconds per second of elapsed realtime, 0 until two distinct samples
+         */
+        double getDrift() {
+            double denominator = mCount * mSumTT - mSumT * mSumT;
+            if (mCount < 2 || denominator <= 0) return 0;
+            return (mCount * mSumTO - mSumT * mSumO) / denominator;
+        }
+
+        /**
+         * Offset between the clock and the elapsed realtime at the start of the record
+         */
+        long getOffsetAtStart() {
+            if (mCount == 0) return 0;
+            return mFirstOffset + Math.round((mSumO - getDrift() * mSumT) / mCount);
+        }
+    }
+
+    private static FieldsWritableObject mWritableObject =
+            new FieldsWritableObject() {
+                @Override
+                public String getStorageFileName(Context context) {
+                    return context.getString(R.string.file_name_clock_sync);
+                }
+
+                @Override
+                public String getWebPage(Resources resources) {
+                    return resources.getString(R.string.webpage_clock_sync);
+                }
+
+                @Override
+                public String getFieldsDescription(Resources resources) {
+                    return resources.getString(R.string.description_clock_sync);
+                }
+
+                @Override
+                public String[] getFields(Resources resources) {
+                    return resources.getStringArray(R.array.fields_clock_sync);
+                }
+
+                @Override
+                public String getFileExtension() {
+                    return "txt";
+                }
+            };
+
+    /**
+     * Get a WritableObject for RecorderWriter
+     */
+    static FieldsWritableObject getFieldsWritableObject() {
+        return mWritableObject;
+    }
+
+    private final Context mContext;
+    private final long mPeriodMs;
+
+    private ScheduledExecutorService mScheduler;
+    private List<Sample> mSamples = new ArrayList<>();
+    private DriftModel mWallModel;
+    private DriftModel mMonotonicModel;
+    private DriftModel mGnssModel;
+
+    ClockSync(Context context) {
+        mContext = context;
+        mPeriodMs = context.getResources().getInteger(R.integer.clock_sync_period_s) * 1000L;
+    }
+
+    synchronized void start(Log.RecordTimes recordTimes) {
+        if (mScheduler != null) return;
+
+        mSamples = new ArrayList<>();
+        mWallModel = new DriftModel(recordTimes.elapsedRealtimeNanosAtStart);
+        mMonotonicModel = new DriftModel(recordTimes.elapsedRealtimeNanosAtStart);
+        mGnssModel = new DriftModel(recordTimes.elapsedRealtimeNanosAtStart);
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mScheduler.scheduleAtFixedRate(this::sampleSystemClocks, 0, mPeriodMs, TimeUnit.MILLISECONDS);
+
+        // GNSS time is taken from fixes requested by GPS sensors, the GPS is not started for it
+        if (hasLocationPermission()) {
+            getLocationManager().requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0,
+                    mLocationListener, RecordingLoopers.getRadioLooper());
+        }
+    }
+
+    synchronized void stop() {
+        if (mScheduler == null) return;
+
+        mScheduler.shutdownNow();
+        mScheduler = null;
+        if (hasLocationPermission()) {
+            getLocationManager().removeUpdates(mLocationListener);
+        }
+
+        android.util.Log.d(Application.LOG_TAG, "ClockSync: " + mSamples.size() + " samples, " +
+                "wall drift " + mWallModel.getDrift() + " ns/s");
+    }
+
+    synchronized List<Sample> getSamples() {
+        return new ArrayList<>(mSamples);
+    }
+
+    /**
+     * Models of the record, clock = elapsed + OffsetAtStart + DriftPpm * 1e-6 * (elapsed - start)
+     */
+    synchronized List<Log.IniRecord> getIniRecords() {
+        List<Log.IniRecord> records = new ArrayList<>();
+        if (mWallModel == null) return records;
+        addModelRecords(records, "Wall", mWallModel);
+        addModelRecords(records, "Monotonic", mMonotonicModel);
+        addModelRecords(records, "Gnss", mGnssModel);
+        return records;
+    }
+
+    private void addModelRecords(List<Log.IniRecord> records, String name, DriftModel model) {
+        if (model.getCount() == 0) return;
+        records.add(new Log.IniRecord(INI_SECTION_NAME, name + ".Samples", model.getCount()));
+        records.add(new Log.IniRecord(INI_SECTION_NAME, name + ".OffsetAtStart", model.getOffsetAtStart()));
+        records.add(new Log.IniRecord(INI_SECTION_NAME, name + ".DriftPpm",
+                String.format(Locale.US, "%.6f", model.getDrift() / 1e3d)));
+    }
+
+    private void sampleSystemClocks() {
+        long bestElapsed = 0, bestMonotonic = 0, bestUnix = 0;
+        long bestWindow = Long.MAX_VALUE;
+
+        // Other clocks are read between two readings of the elapsed realtime
+        for (int i = 0; i < SAMPLE_TRIES; i++) {
+            long before = SystemClock.elapsedRealtimeNanos();
+            long monotonic = System.nanoTime();
+            long unix = System.currentTimeMillis() * 1000000L;
+            long after = SystemClock.elapsedRealtimeNanos();
+            if (after - before < bestWindow) {
+                bestWindow = after - before;
+                bestElapsed = before + bestWindow / 2;
+                bestMonotonic = monotonic;
+                bestUnix = unix;
+            }
+        }
+
+        synchronized (this) {
+            if (mScheduler == null) return;
+            mWallModel.add(bestElapsed, bestUnix);
+            mMonotonicModel.add(bestElapsed, bestMonotonic);
+            // Wall clock resolution is 1 ms
+            mSamples.add(new Sample(SOURCE_SYSTEM, bestElapsed, bestMonotonic, bestUnix,
+                    bestWindow / 2 + 500000L));
+        }
+    }
+
+    private synchronized void onGnssFix(Location location) {
+        if (mScheduler == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) return;
+
+        long elapsed = location.getElapsedRealtimeNanos();
+        long unix = location.getTime() * 1000000L;
+        long uncertainty = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                location.hasElapsedRealtimeUncertaintyNanos()) {
+            uncertainty = (long) location.getElapsedRealtimeUncertaintyNanos();
+        }
+        mGnssModel.add(elapsed, unix);
+        mSamples.add(new Sample(SOURCE_GNSS, elapsed, null, unix, uncertainty));
+    }
+
+    private boolean hasLocationPermission() {
+        return !(Build.VERSION.SDK_INT >= 23 &&
+                mContext.checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED);
+    }
+
+    private LocationManager getLocationManager() {
+        return (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    private final LocationListener mLocationListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            if (LocationManager.GPS_PROVIDER.equals(location.getProvider())) {
+                onGnssFix(location);
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+        }
+    };
+}
@@ -1,19 +1,29 @@
 package fr.inria.tyrex.senslogs.control;
 
 import android.os.AsyncTask;
+import android.os.SystemClock;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+import fr.inria.tyrex.senslogs.Application;
 
 /**
  * Copy a file from Input.src to Input.dst
+ * Data is moved with {@link FileChannel#transferTo} so the kernel can copy it without going
+ * through a Java buffer. Progress is throttled and the copy can be cancelled between chunks.
  */
 public class CopyTask extends AsyncTask<CopyTask.Input, Long, File> {
 
+    // Size of each transferTo call, small enough to react quickly to a cancellation
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+
+    // Minimum time between two progress updates sent to the UI thread
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
     public static class Input {
         public File src;
         public File dst;
@@ -24,35 +34,113 @@ public class CopyTask extends AsyncTask<CopyTask.Input, Long, File> {
         }
     }
 
+    /**
+     * Progress of a copy, given after each chunk
+     */
+    interface ChunkListener {
+        /**
+         * @return false to stop the copy
+         */
+        boolean onChunkCopied(long position, long size);
+    }
+
     @Override
     protected File doInBackground(Input... params) {
 
-        if (params.length != 1) {
+        if (params.length != 1 || isCancelled()) {
             return null;
         }
 
-        try {
-
-            InputStream in = new FileInputStream(params[0].src);
-            OutputStream out = new FileOutputStream(params[0].dst);
+        final long[] lastProgressTime = {0};
+        boolean copied = copyFile(params[0].src, params[0].dst, (position, size) -> {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastProgressTime[0] >= PROGRESS_INTERVAL_MS || position == size) {
+                publishProgress(position);
+                lastProgressTime[0] = now;
+            }
+            return !isCancelled();
+        });
 
-            long totalSize = 0;
+        return copied ? params[0].dst : null;
+    }
 
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-                publishProgress(totalSize += len);
-            }
+    /**
+     * Copy src to dst on the calling thread, for callers which already run in background
+     *
+     * @return true if the whole file has been copied, a partial copy is deleted
+     */
+    public static boolean copySynchronously(File src, File dst) {
+        return copyFile(src, dst, (position, size) -> true);
+    }
 
-            in.close();
-            out.close();
+    private static boolean copyFile(File src, File dst, ChunkListener listener) {
 
+        try (FileChannel in = new FileInputStream(src).getChannel();
+             FileChannel out = new FileOutputStream(dst).getChannel()) {
+            if (copy(in, out, CHUNK_SIZE, listener)) {
+                return true;
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        return params[0].dst;
+        deletePartialFile(dst);
+        return false;
+    }
+
+    /**
+     * Copy a channel to another chunk by chunk, from the beginning of in and the current
+     * position of out
+     *
+     * @return true if the whole channel has been copied and the sizes match
+     */
+    static boolean copy(FileChannel in, FileChannel out, long chunkSize, ChunkListener listener)
+            throws IOException {
+
+        long size = in.size();
+        long position = 0;
+
+        while (position < size) {
+
+            long count = in.transferTo(position, Math.min(chunkSize, size - position), out);
+
+            // transferTo can return 0 on some file systems, fall back on transferFrom
+            // which reads from the current position of the source
+            if (count <= 0) {
+                in.position(position);
+                count = out.transferFrom(in, position, Math.min(chunkSize, size - position));
+                // transferFrom does not move out, the next transferTo writes from its position
+                if (count > 0) {
+                    out.position(position + count);
+                }
+            }
+            if (count <= 0) {
+                android.util.Log.e(Application.LOG_TAG, "CopyTask: no progress at " + position);
+                return false;
+            }
+            position += count;
+
+            if (!listener.onChunkCopied(position, size)) {
+                return false;
+            }
+        }
+
+        out.force(false);
+
+        // Verification
+        if (out.size() != size) {
+            android.util.Log.e(Application.LOG_TAG, "CopyTask: size mismatch (" +
+                    out.size() + " != " + size + ")");
+            return false;
+        }
+
+        return true;
+    }
+
+    private static void deletePartialFile(File file) {
+        if (file.exists() && !file.delete()) {
+            android.util.Log.e(Application.LOG_TAG, "Cannot delete partial copy " + file);
+        }
     }
 
     @Override
@@ -71,12 +159,23 @@ public class CopyTask extends AsyncTask<CopyTask.Input, Long, File> {
         }
     }
 
+    @Override
+    protected void onCancelled(File outputFile) {
+        super.onCancelled(outputFile);
+        if (mListener != null) {
+            mListener.onCopyFinished(null);
+        }
+    }
+
 
     private Listener mListener;
     public void setListener(Listener listener) {
         mListener = listener;
     }
     public interface Listener {
+        /**
+         * @param outputFile copied file, or null if the copy failed or has been cancelled
+         */
         void onCopyFinished(File outputFile);
         void onProgress(Long currentSize);
     }
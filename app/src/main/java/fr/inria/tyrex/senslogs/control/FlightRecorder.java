@@ -1,26 +1,23 @@
 package fr.inria.tyrex.senslogs.control;
 
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.BatteryManager;
-import android.os.Build;
 import android.os.Environment;
-import android.util.Pair;
+import android.os.SystemClock;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import android.provider.Settings.Secure;
-import androidx.core.content.ContextCompat;
 import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
@@ -28,254 +25,239 @@ import fr.inria.tyrex.senslogs.model.log.Log;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 
 
+/**
+ * Split a record in segments (iterations) which are zipped and sent while recording.
+ * Segments are handled by a dedicated thread: boundaries, files creation, closing, zip and
+ * cleanup never run on the main thread. Segment length is counted in recorded time, so a
+ * segment paused before its end is continued on resume.
+ * Segments can be kept in memory and zipped without intermediate files.
+ */
 public class FlightRecorder {
 
     private final Context mContext;
     private final Recorder mRecorder;
+    private final Recorder.RecorderListener mRecorderListener;
+
+    // All the following state is only used by the segmenter thread
+    private final ScheduledExecutorService mSegmenter;
+    private ScheduledFuture<?> mNextBoundary;
+    private final long mSegmentLength;
+    private final boolean mInMemorySegments;
+    // Recorded time of the current segment before the last resume
+    private long mSegmentElapsedTime;
+    private long mResumeTime;
     private RecorderWriter mRecorderWriter;
     private Log mLog;
-    private final Recorder.RecorderListener mRecorderListener;
-    private Timer timer;
-    private TimerTask timerTask;
-    private final int interval = 30000; // create an iteration every 30 Seconds
     private Integer iteration = 0;
     private String mainWorkingFolder;
     private Map<Integer, File> mWorkingFolders; //sub folders for iterations
+
     private SendQueue sendQueue;
-    private String geoLocationUrl = "";
-    private String android_id = "";
+    private LocationTelemetry mLocationTelemetry;
 
     public FlightRecorder(Context context, Recorder realRecorder) {
         mContext = context;
         mRecorder = realRecorder;
+        mSegmenter = Executors.newSingleThreadScheduledExecutor();
+        mSegmentLength = context.getResources().getInteger(R.integer.flight_recorder_segment_length_s) * 1000L;
+        mInMemorySegments = context.getResources().getBoolean(R.bool.flight_recorder_in_memory_segments);
         sendQueue  = new SendQueue(context);
-        android_id= Secure.getString(context.getContentResolver(), Secure.ANDROID_ID);
-        geoLocationUrl = context.getResources().getString(R.string.geolocation_url);
-        mRecorderWriter = mRecorder.getRecorderWriter();
+        mLocationTelemetry = new LocationTelemetry(sendQueue, BatteryMonitor.getInstance(context),
+                context.getResources().getString(R.string.geolocation_url),
+                Secure.getString(context.getContentResolver(), Secure.ANDROID_ID),
+                context.getResources().getInteger(R.integer.telemetry_batch_size),
+                context.getResources().getInteger(R.integer.telemetry_batch_interval_ms));
         mWorkingFolders = new HashMap<>();
         mRecorderListener = new Recorder.RecorderListener() {
             // CAUTION: this function is called on start but also on resume!
             @Override
-            public void onPlay() throws FileNotFoundException {
+            public void onPlay() {
                 android.util.Log.d(Application.LOG_TAG, "FlightRecorder: onPlay");
-                mRecorderWriter = mRecorder.getRecorderWriter();
-                mLog = mRecorder.getLog();
-                if (iteration == 0) {
-                    mainWorkingFolder = String.valueOf(UUID.randomUUID());
-                    File mTemporaryFolder = new File(mContext.getFilesDir(), mainWorkingFolder);
-                    if (!mTemporaryFolder.mkdir()) {
-                        throw new FileNotFoundException();
+                final RecorderWriter recorderWriter = mRecorder.getRecorderWriter();
+                final Log log = mRecorder.getLog();
+                final long resumeTime = SystemClock.elapsedRealtime();
+                mSegmenter.execute(() -> {
+                    mRecorderWriter = recorderWriter;
+                    mLog = log;
+                    if (iteration == 0) {
+                        mainWorkingFolder = String.valueOf(UUID.randomUUID());
+                        File mTemporaryFolder = new File(mContext.getFilesDir(), mainWorkingFolder);
+                        if (!mTemporaryFolder.mkdir()) {
+                            android.util.Log.e(Application.LOG_TAG, "FlightRecorder: cannot create " + mTemporaryFolder);
+                            return;
+                        }
+                        mRecorderWriter.setCurrentFrWorkingFolder(mTemporaryFolder);
+                        mRecorderWriter.setFrInMemory(mInMemorySegments);
+                        mSegmentElapsedTime = 0;
+                        sendQueue.start();
+                        mLocationTelemetry.start(mainWorkingFolder);
+                        startSegment();
                     }
-                    mRecorderWriter.setCurrentFrWorkingFolder(mTemporaryFolder);
-                    sendQueue.start();
-                }
-                timer = new Timer();
-                timerTask = createTask();
-                timer.scheduleAtFixedRate(timerTask, 0, interval);
+                    mResumeTime = resumeTime;
+                    long remaining = Math.max(0, mSegmentLength - mSegmentElapsedTime);
+                    mNextBoundary = mSegmenter.scheduleAtFixedRate(FlightRecorder.this::onSegmentEnd,
+                            remaining, mSegmentLength, TimeUnit.MILLISECONDS);
+                });
             }
 
             @Override
             public void onPause() {
                 android.util.Log.d(Application.LOG_TAG, "FlightRecorder: onPause");
-                //TODO: record elapsed time for the next task
-                timer.cancel();
-                timerTask.cancel();
+                final long pauseTime = SystemClock.elapsedRealtime();
+                mSegmenter.execute(() -> {
+                    if (!cancelNextBoundary()) return;
+                    // Current segment will be continued on resume
+                    mSegmentElapsedTime += pauseTime - mResumeTime;
+                });
             }
 
             @Override
             public void onCancel() {
                 android.util.Log.d(Application.LOG_TAG, "FlightRecorder: onCancel");
-                timer.cancel();
-                timerTask.cancel();
-                // Close files pointer properly
-                try {
-                    // As we have a security margin of 1 iteration between each iteration 'close' we need to close manually the last 2 iterations
-                    if (iteration>1)
-                        mRecorderWriter.frIterationSensorsFosClose(iteration-1);
-                    mRecorderWriter.frIterationSensorsFosClose(iteration);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                // Clear the sending queue
-                sendQueue.terminate(true);
-                deleteWorkingFolders();
-                iteration = 0;
+                mSegmenter.execute(() -> {
+                    cancelNextBoundary();
+                    if (iteration == 0) return;
+                    // Close files pointer properly
+                    waitFor(mRecorderWriter.closeFrIteration(iteration));
+                    // Clear the sending queue
+                    mLocationTelemetry.stop(false);
+                    sendQueue.terminate(true);
+                    deleteWorkingFolders();
+                    iteration = 0;
+                });
             }
 
             @Override
             public void onSave() {
                 android.util.Log.d(Application.LOG_TAG, "FlightRecorder: onSave");
-                timer.cancel();
-                timerTask.cancel();
-                // As we have a security margin of 1 iteration between each iteration 'close' we need to close manually the last 2 iterations
-                save(iteration-1);
-                save(iteration);
-                // Clear the sending queue
-                sendQueue.terminate(false);
-                iteration = 0;
+                mSegmenter.execute(() -> {
+                    cancelNextBoundary();
+                    if (iteration == 0) return;
+                    // Last segment is closed once the writer has written its last rows
+                    waitFor(mRecorderWriter.closeFrIteration(iteration));
+                    save(iteration);
+                    // Clear the sending queue
+                    mLocationTelemetry.stop(true);
+                    sendQueue.terminate(false);
+                    deleteWorkingFolders();
+                    iteration = 0;
+                });
             }
 
             @Override
             public void onNewLocation(Sensor sensor, Object[] objects) {
-                Thread thread = new Thread(new Runnable(){
-                    @Override
-                    public void run() {
-                        try {
-                            addNewLocationToQueue(sensor, objects);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-                thread.start();
+                mLocationTelemetry.addLocation(objects);
             }
         };
         mRecorder.setListener(mRecorderListener);
     }
 
-    public String batteryTemperature() {
-        Intent intent = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-        float  temp   = ((float) intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE,0)) / 10;
-        return String.valueOf(temp);
-    }
-
-    public String batteryLevel() {
-        Intent intent = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-        int rawLevel = intent.getIntExtra("level", -1);
-        int scale = intent.getIntExtra("scale", -1);
-        int level = -1;
-        if (rawLevel >= 0 && scale > 0) {
-            level = (rawLevel * 100) / scale;
-        }
-        return String.valueOf(level);
+    /**
+     * Zip files waiting to be sent, they are kept on disk across restarts
+     */
+    public Set<File> getPendingFiles() {
+        return sendQueue.getPendingFiles();
     }
 
-    private void addNewLocationToQueue(Sensor sensor, Object[] values) {
-        Long time = System.currentTimeMillis();
-        StringBuilder buffer = new StringBuilder();
-        buffer.append(android_id).append(";");
-        buffer.append(mainWorkingFolder).append(";");
-        buffer.append(time.toString()).append(";");
-        for (Object value : values) {
-            buffer.append(value.toString()).append(";");
-        }
-        buffer.append(batteryTemperature()).append(";");
-        buffer.append(batteryLevel()).append(";");
-        sendQueue.addRequestToQueue(geoLocationUrl + "?data=" + buffer.toString());
+    private boolean cancelNextBoundary() {
+        if (mNextBoundary == null) return false;
+        mNextBoundary.cancel(false);
+        mNextBoundary = null;
+        return true;
     }
 
     private void deleteWorkingFolders() {
         for (Map.Entry<Integer, File> folder : mWorkingFolders.entrySet()) {
-            File tmp = folder.getValue();
-            if (tmp.isDirectory()) {
-                String[] children = tmp.list();
-                for (String child : children) {
-                    if (new File(tmp, child).delete())
-                        android.util.Log.d(Application.LOG_TAG, "FlightRecorder: file " + child + " deleted in working folder " + tmp.toString());
-                }
-            }
-            if (tmp.delete())
-                android.util.Log.d(Application.LOG_TAG, "FlightRecorder: working folder " + tmp.toString() + " deleted");
+            deleteWorkingFolder(folder.getValue());
         }
+        mWorkingFolders.clear();
         File mTemporaryFolder = new File(mContext.getFilesDir(), mainWorkingFolder);
         if (mTemporaryFolder.delete())
             android.util.Log.d(Application.LOG_TAG, "FlightRecorder: main working folder " + mTemporaryFolder.toString() + " deleted");
     }
 
-    private TimerTask createTask() {
-        FlightRecorder flightRecorder = this;
-        return new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    flightRecorder.run();
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                }
-            }
-            @Override
-            public boolean cancel() {
-                flightRecorder.cancel();
-                return super.cancel();
+    private void deleteWorkingFolder(File folder) {
+        String[] children = folder.list();
+        if (children != null) {
+            for (String child : children) {
+                if (new File(folder, child).delete())
+                    android.util.Log.d(Application.LOG_TAG, "FlightRecorder: file " + child + " deleted in working folder " + folder.toString());
             }
-        };
+        }
+        if (folder.delete())
+            android.util.Log.d(Application.LOG_TAG, "FlightRecorder: working folder " + folder.toString() + " deleted");
     }
 
-    private void run() throws FileNotFoundException {
+    private void onSegmentEnd() {
+        Integer previousIteration = iteration;
+        Future<?> switched = startSegment();
+        mSegmentElapsedTime = 0;
+        mResumeTime = SystemClock.elapsedRealtime();
+        if (switched == null) return;
+        // Previous segment is closed by the writer after its last row
+        waitFor(switched);
+        save(previousIteration);
+    }
+
+    // Create the files of the next segment and send the next writes to them
+    private Future<?> startSegment() {
         iteration++;
-        if (iteration > 2) {
-            // IMPORTANT: we added a security margin of 2 iterations, before saving/sending the zip, in order to make sure that all async write operations are done and files pointers are closed
-            save(iteration - 2);
-        }
-        android.util.Log.d(Application.LOG_TAG, "FlightRecorder: timer run " + iteration.toString());
-        // Create new (sub)folder for records
+        android.util.Log.d(Application.LOG_TAG, "FlightRecorder: segment " + iteration.toString());
+        // Create new (sub)folder for records, in-memory segments have no files
         File mTemporaryFolder = new File(mContext.getFilesDir() + "/" + mainWorkingFolder, iteration.toString());
-        if (!mTemporaryFolder.mkdir()) {
-            throw new FileNotFoundException();
+        if (!mInMemorySegments && !mTemporaryFolder.mkdir()) {
+            android.util.Log.e(Application.LOG_TAG, "FlightRecorder: cannot create " + mTemporaryFolder);
+            return null;
         }
         mWorkingFolders.put(iteration, mTemporaryFolder);
         android.util.Log.d(Application.LOG_TAG, "FlightRecorder: working folder = " + mTemporaryFolder.toString());
-        mRecorderWriter.initFrIteration(iteration, mTemporaryFolder); //TODO: create files before starting/init. the new iteration in order to avoid writing in non existing files!
-        for (Sensor sensor : mLog.getSensors()) {
-            if (!(sensor instanceof FieldsWritableObject))
-                continue;
-            mRecorderWriter.createFile((FieldsWritableObject) sensor, true);
+        mRecorderWriter.initFrIteration(iteration, mTemporaryFolder);
+        try {
+            for (Sensor sensor : mLog.getSensors()) {
+                if (!(sensor instanceof FieldsWritableObject))
+                    continue;
+                mRecorderWriter.createFile((FieldsWritableObject) sensor, true);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return mRecorderWriter.switchFrIteration(iteration);
     }
 
+    // Zip a closed segment, remove its working folder and send it
     private void save(Integer iterationToSave) {
-        // Simple check to avoid any exception (but should not happen!)
-        if (iterationToSave == 0)
+        android.util.Log.d(Application.LOG_TAG, "FlightRecorder: create zip for iteration " + iterationToSave.toString());
+        String filename = mainWorkingFolder + "-" + iterationToSave.toString();
+        File zipFile = mRecorderWriter.createFrZipFile(filename, iterationToSave);
+
+        // Remove working folder when zip is created
+        File mTemporaryFolder = mWorkingFolders.remove(iterationToSave);
+        if (mTemporaryFolder != null)
+            deleteWorkingFolder(mTemporaryFolder);
+
+        if (zipFile == null) {
+            android.util.Log.e(Application.LOG_TAG, "FlightRecorder: cannot create zip for iteration " + iterationToSave.toString());
             return;
-        // Reminder: here we close the pointers for iteration n-2... unless it's a cancel or finish operation
-        ContextCompat.getMainExecutor(mContext).execute(()  -> {
-            android.util.Log.d(Application.LOG_TAG, "FlightRecorder: saving iteration " + iterationToSave.toString());
-            // Close files pointer properly
-            try {
-                mRecorderWriter.frIterationSensorsFosClose(iterationToSave);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            // Create Zip File
-            android.util.Log.d(Application.LOG_TAG, "FlightRecorder: create zip for iteration " + iterationToSave.toString());
-            String filename = mainWorkingFolder + "-" + iterationToSave.toString();
-            final Pair<File, ZipCreationTask> zipCreationPair;
-            try {
-                zipCreationPair = mRecorderWriter.createZipFile(filename, mLog, iterationToSave);
-                final File zipFile = zipCreationPair.first;
-                final ZipCreationTask zipTask = zipCreationPair.second;
-                zipTask.addListener(new ZipCreationTask.ZipCreationListener() {
-                    @Override
-                    public void onProgress(File currentFile, float ratio) {
-                    }
-                    @Override
-                    public void onTaskFinished(File outputFile, long fileSize) {
-                        android.util.Log.d(Application.LOG_TAG, "FlightRecorder: zip created for iteration " + iterationToSave.toString());
-                        // Remove working folder when zip is created
-                        File mTemporaryFolder = new File(mContext.getFilesDir() + "/" + mainWorkingFolder, iterationToSave.toString());
-                        if (mTemporaryFolder.isDirectory()) {
-                            String[] children = mTemporaryFolder.list();
-                            for (String child : children) {
-                                if (new File(mTemporaryFolder, child).delete())
-                                    android.util.Log.d(Application.LOG_TAG, "FlightRecorder: file " + child + " deleted in working folder " + mTemporaryFolder.toString() + " for iteration " + iterationToSave);
-                            }
-                        }
-                        if (mTemporaryFolder.delete())
-                            android.util.Log.d(Application.LOG_TAG, "FlightRecorder: working folder " + mTemporaryFolder.toString() + " deleted for iteration " + iterationToSave);
-                        zipTask.removeListener(this);
-                        // copy file to internal and/or external storage
-                        if (StorageHelper.isExternalStorageReadableAndWritable()) {
-                            android.util.Log.d(Application.LOG_TAG, "FlightRecorder: copying file to sdcard as " + zipFile.getName());
-                            copyFileToSdCard(zipFile);
-                        }
-                        // Send file web server
-                        sendQueue.addFileToQueue(iterationToSave, zipFile);
-                    }
-                });
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
+        }
+        android.util.Log.d(Application.LOG_TAG, "FlightRecorder: zip created for iteration " + iterationToSave.toString());
+
+        // When the zip has been written directly to its archive destination it is kept after sending
+        boolean isArchive = !zipFile.getAbsolutePath().startsWith(mContext.getFilesDir().getAbsolutePath());
+        // copy file to internal and/or external storage
+        if (!isArchive && StorageHelper.isExternalStorageReadableAndWritable()) {
+            android.util.Log.d(Application.LOG_TAG, "FlightRecorder: copying file to sdcard as " + zipFile.getName());
+            copyFileToSdCard(zipFile);
+        }
+        // Send file web server
+        sendQueue.addFileToQueue(iterationToSave, zipFile, !isArchive);
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
     }
 
     public void copyFileToSdCard(File file) {
@@ -301,12 +283,10 @@ public class FlightRecorder {
 
         File outputFile = new File(outputDir, file.getName());
 
-        CopyTask task = new CopyTask();
-        task.execute(new CopyTask.Input(file, outputFile));
-    }
-
-    private void cancel() {
-        android.util.Log.d(Application.LOG_TAG, "FlightRecorder: timer cancel");
+        // Already called in background, the copy is done before the zip is queued and deleted
+        if (!CopyTask.copySynchronously(file, outputFile)) {
+            android.util.Log.e(Application.LOG_TAG, "FlightRecorder: cannot copy " + file.getName());
+        }
     }
 }
 
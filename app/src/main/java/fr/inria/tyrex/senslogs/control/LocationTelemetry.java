@@ -0,0 +1,123 @@
+package fr.inria.tyrex.senslogs.control;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import fr.inria.tyrex.senslogs.Application;
+
+/**
+ * Realtime locations sent to the geolocation server.
+ * Fixes are coalesced in batches, sent as a single json POST when the batch is full or when
+ * the oldest fix of the batch has waited too long. Each fix has a sequence number, unique for
+ * a record, so the server can order fixes and detect losses or duplicates.
+ */
+class LocationTelemetry {
+
+    private final SendQueue mSendQueue;
+    private final BatteryMonitor mBatteryMonitor;
+    private final String mUrl;
+    private final String mDeviceId;
+    private final int mBatchSize;
+    private final long mBatchIntervalMs;
+    private final Gson mGson = new Gson();
+
+    private String mRecordId;
+    private long mSequence;
+    private List<Fix> mFixes = new ArrayList<>();
+
+    private ScheduledExecutorService mScheduler;
+    private ScheduledFuture<?> mFlushTask;
+
+    LocationTelemetry(SendQueue sendQueue, BatteryMonitor batteryMonitor, String url,
+                      String deviceId, int batchSize, long batchIntervalMs) {
+        mSendQueue = sendQueue;
+        mBatteryMonitor = batteryMonitor;
+        mUrl = url;
+        mDeviceId = deviceId;
+        mBatchSize = Math.max(1, batchSize);
+        mBatchIntervalMs = batchIntervalMs;
+    }
+
+    synchronized void start(String recordId) {
+        if (mScheduler != null) return;
+        mRecordId = recordId;
+        mSequence = 0;
+        mFixes = new ArrayList<>();
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mBatteryMonitor.acquire();
+    }
+
+    /**
+     * @param flush if true, fixes not sent yet are queued, otherwise they are dropped
+     */
+    synchronized void stop(boolean flush) {
+        if (mScheduler == null) return;
+        if (flush) flush();
+        mFixes = new ArrayList<>();
+        mScheduler.shutdownNow();
+        mScheduler = null;
+        mFlushTask = null;
+        mBatteryMonitor.release();
+    }
+
+    /**
+     * Called for each new location, it only stores the fix
+     */
+    synchronized void addLocation(Object[] values) {
+        if (mScheduler == null) return;
+
+        Fix fix = new Fix();
+        fix.sequence = mSequence++;
+        fix.time = System.currentTimeMillis();
+        fix.values = values.clone();
+        mFixes.add(fix);
+
+        if (mFixes.size() >= mBatchSize) {
+            mScheduler.execute(this::flush);
+        } else if (mFlushTask == null) {
+            mFlushTask = mScheduler.schedule(this::flush, mBatchIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void flush() {
+        if (mFlushTask != null) {
+            mFlushTask.cancel(false);
+            mFlushTask = null;
+        }
+        if (mFixes.isEmpty()) return;
+
+        Batch batch = new Batch();
+        batch.device = mDeviceId;
+        batch.record = mRecordId;
+        BatteryMonitor.Snapshot battery = mBatteryMonitor.getSnapshot();
+        if (battery != null) {
+            batch.batteryTemperature = battery.temperature;
+            batch.batteryLevel = battery.level;
+        }
+        batch.fixes = mFixes;
+        mFixes = new ArrayList<>();
+
+        android.util.Log.d(Application.LOG_TAG, "LocationTelemetry: " + batch.fixes.size() + " fixes queued");
+        mSendQueue.addPostToQueue(mUrl, mGson.toJson(batch));
+    }
+
+    private static class Fix {
+        long sequence;
+        long time;
+        Object[] values;
+    }
+
+    private static class Batch {
+        String device;
+        String record;
+        float batteryTemperature;
+        int batteryLevel;
+        List<Fix> fixes;
+    }
+}
@@ -1,11 +1,24 @@
 package fr.inria.tyrex.senslogs.control;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.DocumentsContract;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
@@ -17,11 +30,19 @@ import fr.inria.tyrex.senslogs.model.preferences.LogsDataSource;
  */
 public class LogsManager {
 
+    // Number of threads used to delete files of a batch
+    private final static int FILE_OPERATIONS_THREADS = 4;
 
+    private final Context mContext;
+    // Files are deleted in the background, shared by all deletions
+    private final ExecutorService mFileExecutor = Executors.newFixedThreadPool(FILE_OPERATIONS_THREADS);
+    // Listeners update the UI, they are notified on the main thread
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private List<Log> mLogs;
     private LogsDataSource mDataSource;
 
     public LogsManager(Context context, SensorsManager sensorsManager) {
+        mContext = context;
         mDataSource = new LogsDataSource(context, sensorsManager);
         loadLogs();
     }
@@ -35,22 +56,127 @@ public class LogsManager {
         mLogs.add(log);
         mDataSource.addLog(log);
         log.addListener(mDatasetChangedListener);
+        notifyLogsChanged();
     }
 
 
-    public void deleteLog(Log log) {
-        if(!log.getZipFile().delete()) {
-            android.util.Log.e(Application.LOG_TAG, "Cannot delete log file");
-        }
+    public void deleteLog(final Log log) {
+        mFileExecutor.execute(() -> deleteLogFile(log));
         mLogs.remove(log);
         mDataSource.deleteLog(log);
         log.removeListener(mDatasetChangedListener);
+        notifyLogsChanged();
+    }
+
+
+    /*
+    Batch operations: logs are persisted once and listeners are notified once
+     */
+
+    /**
+     * Add logs to the catalog, a log which has the same id as a known one replaces it
+     */
+    public void importAll(Collection<Log> logs) {
+        if (logs.isEmpty()) return;
+
+        Collection<Log> importedLogs = distinctById(logs);
+        for (Log log : replaceById(mLogs, importedLogs)) {
+            log.removeListener(mDatasetChangedListener);
+        }
+        for (Log log : importedLogs) {
+            log.addListener(mDatasetChangedListener);
+        }
+        mDataSource.updateLogs(importedLogs);
+        notifyLogsChanged();
+    }
+
+    /**
+     * The last log of the batch is kept for each id, a log without id is identified by its archive
+     */
+    static Collection<Log> distinctById(Collection<Log> logs) {
+        Map<String, Log> distinctLogs = new LinkedHashMap<>();
+        for (Log log : logs) {
+            if (log.getId() == null) {
+                log.setId(log.getZipFile().getAbsolutePath());
+            }
+            distinctLogs.put(log.getId(), log);
+        }
+        return distinctLogs.values();
+    }
+
+    /**
+     * Append logs to the catalog, removing the ones with the same id
+     * @return the logs which have been removed from the catalog
+     */
+    static List<Log> replaceById(List<Log> catalog, Collection<Log> logs) {
+        List<Log> replacedLogs = new ArrayList<>();
+        for (Log log : logs) {
+            int index = catalog.indexOf(log);
+            if (index >= 0) {
+                replacedLogs.add(catalog.remove(index));
+            }
+            catalog.add(log);
+        }
+        return replacedLogs;
+    }
+
+    public void updateAll(Collection<Log> logs) {
+        if (logs.isEmpty()) return;
+
+        mDataSource.updateLogs(logs);
+        notifyLogsChanged();
+    }
+
+    /**
+     * Logs are removed from the catalog at once, their files are deleted in parallel in the
+     * background so the caller is not blocked
+     */
+    public void deleteAll(Collection<Log> logs) {
+        if (logs.isEmpty()) return;
+
+        for (final Log log : logs) {
+            mFileExecutor.execute(() -> deleteLogFile(log));
+        }
+
+        for (Log log : logs) {
+            log.removeListener(mDatasetChangedListener);
+        }
+        mLogs.removeAll(new HashSet<>(logs));
+        mDataSource.deleteLogs(logs);
+        notifyLogsChanged();
     }
 
 
 
+    private void deleteLogFile(Log log) {
+
+        if (log.getZipUri() != null) {
+            try {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT ||
+                        !DocumentsContract.deleteDocument(mContext.getContentResolver(),
+                                Uri.parse(log.getZipUri()))) {
+                    android.util.Log.e(Application.LOG_TAG, "Cannot delete log document");
+                }
+            } catch (FileNotFoundException | SecurityException e) {
+                android.util.Log.e(Application.LOG_TAG, "Cannot delete log document", e);
+            }
+            return;
+        }
+
+        if(!log.getZipFile().delete()) {
+            android.util.Log.e(Application.LOG_TAG, "Cannot delete log file");
+        }
+    }
+
+
     public File copyLogToSdCard(Context context, Log log, CopyTask.Listener listener) {
 
+        // Log has been written directly to a user selected folder, there is no file to copy
+        if (log.getZipUri() != null) {
+            listener.onCopyFinished(null);
+            return null;
+        }
+
         File outputDir = new File(Environment.getExternalStorageDirectory(),
                 context.getString(R.string.folder_logs_sd_card));
 
@@ -70,7 +196,34 @@ public class LogsManager {
 
 
     /*
-    Shared preferences consistency
+    Listeners
+     */
+
+    public interface Listener {
+        void onLogsChanged();
+    }
+
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyLogsChanged() {
+        mMainHandler.post(() -> {
+            for (Listener listener : mListeners) {
+                listener.onLogsChanged();
+            }
+        });
+    }
+
+
+    /*
+    Database consistency
      */
 
     private Log.Listener mDatasetChangedListener = new Log.Listener() {
@@ -94,12 +247,11 @@ public class LogsManager {
         while(iterator.hasNext()) {
             Log log = iterator.next();
             log.removeListener(mDatasetChangedListener);
-            if(!log.getZipFile().delete()) {
-                android.util.Log.e(Application.LOG_TAG, "Cannot delete log file");
-            }
+            deleteLogFile(log);
             iterator.remove();
         }
         mDataSource.removeAll();
         mLogs.clear();
+        notifyLogsChanged();
     }
 }
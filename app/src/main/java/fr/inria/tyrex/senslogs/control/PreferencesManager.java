@@ -6,6 +6,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.model.ArchiveDestination;
 import fr.inria.tyrex.senslogs.model.preferences.Preference;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 import fr.inria.tyrex.senslogs.model.preferences.PreferencesDataSource;
@@ -18,12 +20,18 @@ public class PreferencesManager {
     private final PreferencesDataSource mDataSource;
     private List<Preference> mSensorsPreferences;
     private Map<Sensor.Category, Boolean> mCacheCategories;
+    private ArchiveDestination mArchiveDestination;
+    private final long mDefaultKeepWarmTimeoutMs;
+    private long mKeepWarmTimeoutMs;
 
     public PreferencesManager(Context context, SensorsManager sensorsManager) {
 
         mDataSource = new PreferencesDataSource(context, sensorsManager);
         loadPreferences();
         loadCategories();
+        mArchiveDestination = mDataSource.getArchiveDestination();
+        mDefaultKeepWarmTimeoutMs = context.getResources().getInteger(R.integer.sensors_keep_warm_ms);
+        mKeepWarmTimeoutMs = mDataSource.getKeepWarmTimeoutMs(mDefaultKeepWarmTimeoutMs);
     }
 
     public void setChecked(Sensor sensor, boolean checked) {
@@ -109,8 +117,32 @@ public class PreferencesManager {
     }
 
 
+    public ArchiveDestination getArchiveDestination() {
+        return mArchiveDestination;
+    }
+
+    public void setArchiveDestination(ArchiveDestination destination) {
+        mArchiveDestination = destination;
+        mDataSource.setArchiveDestination(destination);
+    }
+
+    /**
+     * Time sensors keep running during a pause, 0 if they are stopped immediately
+     */
+    public long getKeepWarmTimeoutMs() {
+        return mKeepWarmTimeoutMs;
+    }
+
+    public void setKeepWarmTimeoutMs(long timeoutMs) {
+        mKeepWarmTimeoutMs = timeoutMs;
+        mDataSource.setKeepWarmTimeoutMs(timeoutMs);
+    }
+
+
     public void clearAll() {
         mSensorsPreferences.clear();
+        mArchiveDestination = ArchiveDestination.DEFAULT;
+        mKeepWarmTimeoutMs = mDefaultKeepWarmTimeoutMs;
         mDataSource.removeAll();
     }
 
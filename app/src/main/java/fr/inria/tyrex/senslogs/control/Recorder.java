@@ -8,7 +8,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
@@ -17,9 +19,14 @@ import android.util.Pair;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
@@ -61,6 +68,16 @@ public class Recorder {
 
     private RecorderWriter mRecorderWriter;
     private Log mLog;
+    private final SensorLifecycle mSensorLifecycle;
+    private final ClockSync mClockSync;
+    // Samples are dropped until all sensors have been started
+    private final boolean mAlignOnSensorsReady;
+
+    // Warm pause: sensors keep running but their values are not written, until the timeout.
+    // Sensors stopped by the pause are not gated, so the last batch they flush is kept.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Set<Sensor> mGatedSensors = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private boolean mSensorsWarm;
 
     private Map<Sensor, Sensor.Settings> mSensorsAndSettings;
     private LinkedList<PositionReference> mReferences;
@@ -76,6 +93,9 @@ public class Recorder {
         mLogsManager = logsManager;
         mPreferencesManager = preferencesManager;
         mReferences = new LinkedList<>();
+        mSensorLifecycle = new SensorLifecycle(context);
+        mClockSync = new ClockSync(context);
+        mAlignOnSensorsReady = context.getResources().getBoolean(R.bool.align_start_on_sensors_ready);
     }
 
     public void setListener(RecorderListener listener) {
@@ -111,9 +131,12 @@ public class Recorder {
 
         mLog.init(mContext);
         mReferences.clear();
+        mSensorLifecycle.reset();
+        mClockSync.start(mLog.getRecordTimes());
 
         // We need to create a new instance because writer is used during zip creation task
         mRecorderWriter = new RecorderWriter(mContext);
+        mRecorderWriter.setArchiveDestination(mPreferencesManager.getArchiveDestination());
         mRecorderWriter.init(mLog);
     }
 
@@ -135,11 +158,40 @@ public class Recorder {
         }
 
 
-        // Start and listen sensors
-        for (final Map.Entry<Sensor, Sensor.Settings> sensorAndSetting : mSensorsAndSettings.entrySet()) {
+        if (mSensorsWarm) {
+            // Sensors are still running, only the ones which have been stopped are started
+            mHandler.removeCallbacks(mKeepWarmTimeout);
+            mSensorsWarm = false;
 
-            final Sensor sensor = sensorAndSetting.getKey();
-            final Sensor.Settings settings = sensorAndSetting.getValue();
+            Map<Sensor, Sensor.Settings> stoppedSensors = new HashMap<>();
+            for (Map.Entry<Sensor, Sensor.Settings> sensorAndSetting : mSensorsAndSettings.entrySet()) {
+                Sensor sensor = sensorAndSetting.getKey();
+                if (sensor.supportsWarmPause()) {
+                    sensor.resumeOutput(mContext);
+                } else {
+                    stoppedSensors.put(sensor, sensorAndSetting.getValue());
+                }
+            }
+            startSensors(stoppedSensors);
+            mGatedSensors.clear();
+        } else {
+            mGatedSensors.clear();
+            startSensors(mSensorsAndSettings);
+        }
+
+        createNotification();
+        startTimer();
+        isRecording = true;
+
+        // Send 'onPlay' event to the Flight Recorder
+        if (listener != null)
+            listener.onPlay();
+    }
+
+    // Start and listen sensors
+    private void startSensors(Map<Sensor, Sensor.Settings> sensorsAndSettings) {
+
+        for (final Sensor sensor : sensorsAndSettings.keySet()) {
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && sensor instanceof CameraRecorder) {
                 mRecorderWriter.updateVideoPath();
@@ -148,7 +200,12 @@ public class Recorder {
             if (sensor instanceof FieldsWritableObject) {
                 sensor.setListener(new Sensor.Listener() {
                     @Override
-                    public void onNewValues(double diffTimeSystem, double diffTimeSensor, Object[] objects) {
+                    public void onNewValues(long diffTimeSystem, long diffTimeSensor, Object[] objects) {
+                        mSensorLifecycle.onSample(sensor);
+                        if (mGatedSensors.contains(sensor) ||
+                                (mAlignOnSensorsReady && !mSensorLifecycle.isReady())) {
+                            return;
+                        }
                         // Listener for realtime location
                         if (listener != null && sensor instanceof LocationGpsSensor) {
                             listener.onNewLocation(sensor, objects);
@@ -157,22 +214,14 @@ public class Recorder {
                     }
                 });
             }
-
-            // Some sensors take a long time to start but have to be run on UI thread
-            if (sensor.mustRunOnUiThread()) {
-                sensor.start(mContext, settings, mLog.getRecordTimes());
-            } else {
-                new Thread(() -> sensor.start(mContext, settings, mLog.getRecordTimes())).start();
-            }
         }
 
-        createNotification();
-        startTimer();
-        isRecording = true;
+        mSensorLifecycle.start(sensorsAndSettings, mLog.getRecordTimes());
+    }
 
-        // Send 'onPlay' event to the Flight Recorder
-        if (listener != null)
-            listener.onPlay();
+    // Listeners are removed by the lifecycle once sensors are stopped
+    private void stopSensors(Iterable<Sensor> sensors) {
+        mSensorLifecycle.stop(sensors);
     }
 
 
@@ -183,15 +232,23 @@ public class Recorder {
         stopTimer();
         removeNotification();
 
-        for (final Sensor sensor : mSensorsAndSettings.keySet()) {
-
-            sensor.setListener(null);
-
-            if (sensor.mustRunOnUiThread()) {
-                sensor.stop(mContext);
-            } else {
-                new Thread(() -> sensor.stop(mContext)).start();
+        long keepWarmTimeoutMs = mPreferencesManager.getKeepWarmTimeoutMs();
+        if (keepWarmTimeoutMs > 0) {
+            // Values are dropped at the pipeline entry, sensors which can not stay warm are stopped
+            List<Sensor> stoppedSensors = new ArrayList<>();
+            for (Sensor sensor : mSensorsAndSettings.keySet()) {
+                if (sensor.supportsWarmPause()) {
+                    mGatedSensors.add(sensor);
+                    sensor.pauseOutput(mContext);
+                } else {
+                    stoppedSensors.add(sensor);
+                }
             }
+            stopSensors(stoppedSensors);
+            mSensorsWarm = true;
+            mHandler.postDelayed(mKeepWarmTimeout, keepWarmTimeoutMs);
+        } else {
+            stopSensors(mSensorsAndSettings.keySet());
         }
 
         mLog.getRecordTimes().endTime = System.currentTimeMillis() / 1e3d;
@@ -203,11 +260,34 @@ public class Recorder {
     }
 
 
+    /**
+     * Stop sensors kept warm by the last pause
+     */
+    private void coolDown() {
+        mHandler.removeCallbacks(mKeepWarmTimeout);
+        if (!mSensorsWarm) return;
+        mSensorsWarm = false;
+
+        List<Sensor> warmSensors = new ArrayList<>();
+        for (Sensor sensor : mSensorsAndSettings.keySet()) {
+            if (sensor.supportsWarmPause()) {
+                warmSensors.add(sensor);
+            }
+        }
+        stopSensors(warmSensors);
+    }
+
+    private final Runnable mKeepWarmTimeout = this::coolDown;
+
+
     public void cancel() throws IOException {
 
         if (isRecording) {
             pause();
         }
+        coolDown();
+        mSensorLifecycle.awaitStopped(mSensorsAndSettings.keySet());
+        mClockSync.stop();
         resetTimer();
         mRecorderWriter.finish();
         mRecorderWriter.removeFiles();
@@ -231,7 +311,14 @@ public class Recorder {
         if (listener != null)
             listener.onSave();
 
+        coolDown();
+        // Last batches flushed by the sensors are written before the files are closed
+        mSensorLifecycle.awaitStopped(mSensorsAndSettings.keySet());
+
+        mClockSync.stop();
+
         mRecorderWriter.writeReferences(mReferences);
+        mRecorderWriter.writeClockSync(mClockSync.getSamples(), mLog.getRecordTimes());
         mRecorderWriter.finish();
 
         resetTimer();
@@ -247,6 +334,8 @@ public class Recorder {
         mLog.setComment(comment);
         mLog.setPositionOrientation(positionOrientation);
         mLog.setUncompressedSize(mRecorderWriter.getDataSize());
+        mLog.addExtraIniRecords(mSensorLifecycle.getIniRecords(mLog.getRecordTimes()));
+        mLog.addExtraIniRecords(mClockSync.getIniRecords());
 
 
         // Create Zip File
@@ -279,6 +368,15 @@ public class Recorder {
     }
 
 
+    /**
+     * Wait until all sensors of the last play have been started, or their start has timed out
+     *
+     * @return false if sensors are not ready after timeoutMs
+     */
+    public boolean awaitSensorsReady(long timeoutMs) throws InterruptedException {
+        return mSensorLifecycle.awaitReady(timeoutMs);
+    }
+
     public Log.RecordTimes getRecordTimes() {
         return mLog.getRecordTimes();
     }
@@ -288,7 +386,7 @@ public class Recorder {
     }
 
     public void addReference(double latitude, double longitude, Float level) {
-        double elapsedTime = System.currentTimeMillis() / 1e3d - mLog.getRecordTimes().startTime;
+        long elapsedTime = mLog.getRecordTimes().sinceStart();
         mReferences.add(new PositionReference(elapsedTime, latitude, longitude, level));
     }
 
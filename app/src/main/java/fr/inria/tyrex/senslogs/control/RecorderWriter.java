@@ -2,32 +2,47 @@ package fr.inria.tyrex.senslogs.control;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Build;
+import android.provider.DocumentsContract;
 import android.util.Pair;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import org.ini4j.Wini;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.model.ArchiveDestination;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
 import fr.inria.tyrex.senslogs.model.PositionReference;
 import fr.inria.tyrex.senslogs.model.WritableObject;
@@ -45,20 +60,31 @@ public class RecorderWriter {
     private Context mContext;
 
     private StringBuilder buffer1 = new StringBuilder();
-    private StringBuilder buffer2 = new StringBuilder();
+
+    // Timestamps are written in seconds with this number of decimals (3, 6 or 9)
+    private final int mTimestampDigits;
+    private final long mTimestampUnitNanos;
 
     private List<String> mFileNames;
     private Map<WritableObject, FileOutputStream> mSensorsFos;
     private Map<WritableObject, File> mSensorsFiles;
     private File mOutputDirectory;
+    private ArchiveDestination mArchiveDestination = ArchiveDestination.DEFAULT;
 
     // Variables for our FlightRecorder iterations
-    private Integer currentIteration = 1;
+    // Iteration receiving the writes, only changed on the writer thread
+    private volatile Integer currentIteration = 0;
+    // Iteration whose files are being created
+    private Integer preparedIteration = 0;
     private File currentFrWorkingFolder;
     // Collection of filenames per iteration
     private Map<Integer, List<String>> frIterationFileNames;
-    // Collection of FileOutputStream per iteration
-    private Map<Integer, Map<WritableObject, FileOutputStream>> frIterationSensorsFos;
+    // Collection of FileOutputStream (or SegmentBuffer) per iteration
+    private Map<Integer, Map<WritableObject, OutputStream>> frIterationSensorsFos;
+    // When true, iterations are kept in memory and directly zipped, without files
+    private boolean frInMemory;
+    // Collection of in-memory files per iteration
+    private Map<Integer, Map<WritableObject, SegmentBuffer>> frIterationBuffers;
     // Collection of File per iteration
     private Map<Integer, Map<WritableObject, File>> frIterationSensorsFiles;
     // Collection of (sub)folder (in the currentFrWorkingFolder) per iteration
@@ -68,10 +94,24 @@ public class RecorderWriter {
         mContext = context;
         mSensorsFos = new HashMap<>();
         mSensorsFiles = new HashMap<>();
-        frIterationFileNames = new HashMap<>();
-        frIterationSensorsFos = new HashMap<>();
-        frIterationSensorsFiles = new HashMap<>();
-        frIterationOutputDirectory = new HashMap<>();
+        // Iterations are prepared by the flight recorder thread and used by the writer thread
+        frIterationFileNames = new ConcurrentHashMap<>();
+        frIterationSensorsFos = new ConcurrentHashMap<>();
+        frIterationSensorsFiles = new ConcurrentHashMap<>();
+        frIterationOutputDirectory = new ConcurrentHashMap<>();
+        frIterationBuffers = new ConcurrentHashMap<>();
+
+        String precision = context.getString(R.string.timestamp_precision);
+        if ("ns".equals(precision)) {
+            mTimestampDigits = 9;
+        } else if ("us".equals(precision)) {
+            mTimestampDigits = 6;
+        } else {
+            mTimestampDigits = 3;
+        }
+        long unit = 1;
+        for (int i = mTimestampDigits; i < 9; i++) unit *= 10;
+        mTimestampUnitNanos = unit;
     }
 
     public void init(Log log) throws FileNotFoundException {
@@ -83,8 +123,9 @@ public class RecorderWriter {
         frIterationSensorsFos.clear();
         frIterationSensorsFiles.clear();
         frIterationOutputDirectory.clear();
+        frIterationBuffers.clear();
+        currentIteration = 0;
         buffer1.setLength(0);
-        buffer2.setLength(0);
 
         mOutputDirectory = log.getTemporaryFolder();
         mFileNames = new ArrayList<>();
@@ -107,18 +148,67 @@ public class RecorderWriter {
         mSensorsFiles.put(cameraRecorder, file);
     }
 
+    public void setArchiveDestination(ArchiveDestination archiveDestination) {
+        mArchiveDestination = archiveDestination;
+    }
+
     public void setCurrentFrWorkingFolder(File currentFrWorkingFolder) {
         this.currentFrWorkingFolder = currentFrWorkingFolder;
     }
 
-    // Function called for each iteration in order to fill our collections
+    public void setFrInMemory(boolean frInMemory) {
+        this.frInMemory = frInMemory;
+    }
+
+    public boolean isFrInMemory() {
+        return frInMemory;
+    }
+
+    // Function called for each iteration in order to fill our collections, before its files are created
     public void initFrIteration(Integer iteration, File frOutputDirectory) {
-        this.currentIteration = iteration;
-        this.frIterationOutputDirectory.put(this.currentIteration, frOutputDirectory);
-        this.frIterationFileNames.put(this.currentIteration, new ArrayList<>());
-        this.frIterationSensorsFiles.put(this.currentIteration, new HashMap<>());
-        this.frIterationSensorsFos.put(this.currentIteration, new HashMap<>());
-        android.util.Log.d(Application.LOG_TAG, "setFrOutputDirectory: initFrIteration " + this.currentIteration.toString() + " => " + frOutputDirectory.toString());
+        this.preparedIteration = iteration;
+        this.frIterationOutputDirectory.put(iteration, frOutputDirectory);
+        this.frIterationFileNames.put(iteration, new ArrayList<>());
+        this.frIterationSensorsFiles.put(iteration, new HashMap<>());
+        this.frIterationSensorsFos.put(iteration, new ConcurrentHashMap<>());
+        if (frInMemory) {
+            this.frIterationBuffers.put(iteration, new HashMap<>());
+        }
+        android.util.Log.d(Application.LOG_TAG, "setFrOutputDirectory: initFrIteration " + iteration.toString() + " => " + frOutputDirectory.toString());
+    }
+
+    /**
+     * Send the next writes to a prepared iteration and close the previous one.
+     * The switch is done on the writer thread, so each row is written in exactly one iteration.
+     */
+    public Future<?> switchFrIteration(Integer iteration) {
+        return executeAfterWrites(() -> {
+            Integer previousIteration = currentIteration;
+            currentIteration = iteration;
+            closeFrIterationStreams(previousIteration);
+        });
+    }
+
+    /**
+     * Close the files of an iteration once the writes already queued are done
+     */
+    public Future<?> closeFrIteration(Integer iteration) {
+        return executeAfterWrites(() -> closeFrIterationStreams(iteration));
+    }
+
+    private Future<?> executeAfterWrites(Runnable runnable) {
+        try {
+            return executor.submit(runnable);
+        } catch (RejectedExecutionException ignored) {
+        }
+        // Writer has been finished, wait for its last writes
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            runnable.run();
+            return null;
+        });
+        task.run();
+        return task;
     }
 
     // Original function
@@ -134,11 +224,11 @@ public class RecorderWriter {
         File file;
         String fileName;
         if (forFlightRecorder) {
-            fileName = avoidDuplicateFiles(frIterationFileNames.get(this.currentIteration),
+            fileName = avoidDuplicateFiles(frIterationFileNames.get(this.preparedIteration),
                     fwo.getStorageFileName(mContext)) +
                     "." + fwo.getFileExtension();
-            file = new File(frIterationOutputDirectory.get(this.currentIteration), fileName);
-            frIterationSensorsFiles.get(this.currentIteration).put(fwo, file);
+            file = new File(frIterationOutputDirectory.get(this.preparedIteration), fileName);
+            frIterationSensorsFiles.get(this.preparedIteration).put(fwo, file);
             android.util.Log.d(Application.LOG_TAG, "createFile for FlightRecorder: " + fileName);
         } else {
             fileName = avoidDuplicateFiles(mFileNames,
@@ -149,49 +239,63 @@ public class RecorderWriter {
             android.util.Log.d(Application.LOG_TAG, "createFile for default recorder: " + fileName);
         }
 
-        FileOutputStream fos = new FileOutputStream(file);
-        if (forFlightRecorder) {
-            frIterationSensorsFos.get(this.currentIteration).put(fwo, fos);
+        OutputStream fos;
+        if (forFlightRecorder && frInMemory) {
+            SegmentBuffer segmentBuffer = new SegmentBuffer();
+            frIterationBuffers.get(this.preparedIteration).put(fwo, segmentBuffer);
+            frIterationSensorsFos.get(this.preparedIteration).put(fwo, segmentBuffer);
+            fos = segmentBuffer;
+        } else if (forFlightRecorder) {
+            fos = new FileOutputStream(file);
+            frIterationSensorsFos.get(this.preparedIteration).put(fwo, fos);
         } else {
-            mSensorsFos.put(fwo, fos);
+            FileOutputStream fileOutputStream = new FileOutputStream(file);
+            mSensorsFos.put(fwo, fileOutputStream);
+            fos = fileOutputStream;
         }
 
+        // Files of iterations are created on the flight recorder thread, so the buffer is local
+        StringBuilder buffer = new StringBuilder();
         boolean first = true;
         //Columns name
         for (String field : fwo.getFields(resources)) {
             if (!first) {
-                buffer2.append(';');
+                buffer.append(';');
             }
-            buffer2.append(field);
+            buffer.append(field);
             first = false;
         }
-        buffer2.append('\n');
-        byte[] bytes = buffer2.toString().getBytes();
+        buffer.append('\n');
+        byte[] bytes = buffer.toString().getBytes();
 
         try {
             fos.write(bytes);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        buffer2.setLength(0);
     }
 
-    public void asyncWrite(final WritableObject writableObject, final double elapsedTimeSystem,
-                           final Double elapsedTimeSensor, final Object[] values) {
+    /**
+     * @param elapsedTimeSystem nanoseconds since the start of the record
+     * @param elapsedTimeSensor nanoseconds since the start of the record, null if not available
+     */
+    public void asyncWrite(final WritableObject writableObject, final long elapsedTimeSystem,
+                           final Long elapsedTimeSensor, final Object[] values) {
         executor.execute(() -> write(writableObject, elapsedTimeSystem, elapsedTimeSensor, values));
     }
 
     // This function has been modified in order to write simultaneously to the "big file" and the iteration file
-    public void write(final WritableObject writableObject, final double elapsedTimeSystem,
-                      final Double elapsedTimeSensor, final Object[] values) {
+    public void write(final WritableObject writableObject, final long elapsedTimeSystem,
+                      final Long elapsedTimeSensor, final Object[] values) {
         FileOutputStream fos = mSensorsFos.get(writableObject);
-        FileOutputStream frFos = frIterationSensorsFos.get(this.currentIteration).get(writableObject);
+        Map<WritableObject, OutputStream> frIterationFos = frIterationSensorsFos.get(this.currentIteration);
+        OutputStream frFos = frIterationFos == null ? null : frIterationFos.get(writableObject);
         try {
-            buffer1.append(String.format(Locale.US, "%.3f", elapsedTimeSystem));
+            appendTimestamp(buffer1, elapsedTimeSystem);
 
             if (elapsedTimeSensor != null) {
-                buffer1.append(';');
-                buffer1.append(String.format(Locale.US, " %.3f", elapsedTimeSensor));
+                buffer1.append("; ");
+                appendTimestamp(buffer1, elapsedTimeSensor);
             }
             for (Object value : values) {
                 buffer1.append(';');
@@ -211,6 +315,26 @@ public class RecorderWriter {
     }
 
 
+    /**
+     * Write nanoseconds as seconds rounded to the timestamp precision, without floating point
+     */
+    private void appendTimestamp(StringBuilder builder, long nanos) {
+        long half = mTimestampUnitNanos / 2;
+        long units = nanos >= 0 ? (nanos + half) / mTimestampUnitNanos :
+                -((-nanos + half) / mTimestampUnitNanos);
+        if (units < 0) {
+            builder.append('-');
+            units = -units;
+        }
+        long unitsPerSecond = 1000000000L / mTimestampUnitNanos;
+        builder.append(units / unitsPerSecond).append('.');
+        long fraction = units % unitsPerSecond;
+        for (long divisor = unitsPerSecond / 10; divisor > 0; divisor /= 10) {
+            builder.append((char) ('0' + fraction / divisor % 10));
+        }
+    }
+
+
     public void finish() throws IOException {
 
         executor.shutdown();
@@ -222,16 +346,19 @@ public class RecorderWriter {
     }
 
     // Close all FileOutputStream properly on each iteration end
-    public void frIterationSensorsFosClose(Integer iteration) throws IOException {
-        android.util.Log.d(Application.LOG_TAG, "FlightRecorder: closing FOS of iteration " + iteration.toString());
-        Map<WritableObject, FileOutputStream> collection = frIterationSensorsFos.get(iteration);
+    private void closeFrIterationStreams(Integer iteration) {
+        Map<WritableObject, OutputStream> collection = frIterationSensorsFos.remove(iteration);
         if (collection==null)
             return;
-        for (FileOutputStream frFos : collection.values()) {
-            frFos.flush();
-            frFos.close();
+        android.util.Log.d(Application.LOG_TAG, "FlightRecorder: closing FOS of iteration " + iteration.toString());
+        for (OutputStream frFos : collection.values()) {
+            try {
+                frFos.flush();
+                frFos.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-        frIterationSensorsFos.get(iteration).clear();
     }
 
     private File writeDescriptionFile(Log log) throws IOException {
@@ -298,45 +425,176 @@ public class RecorderWriter {
     // Original function
     public Pair<File, ZipCreationTask> createZipFile(String fileName, Log log)
             throws IOException {
-        return createZipFile(fileName, log, 0);
-    }
 
-    // New function with an additional parameter in order to create a zip for each iteration
-    public Pair<File, ZipCreationTask> createZipFile(String fileName, Log log, Integer iteration)
-            throws IOException {
+        File outputFile = getArchiveFile(fileName, 0);
 
-        File outputFile;
-        if (iteration > 0) {
-            outputFile = new File(currentFrWorkingFolder, fileName + ".zip");
-        } else {
-            outputFile = new File(mContext.getFilesDir(), fileName + ".zip");
-        }
-
-        if (outputFile.exists()) {
-            int i = 2;
-            while ((outputFile = new File(mContext.getFilesDir(), fileName + "-" + i++ + ".zip")).exists())
-                ;
-        }
+        writeDescriptionFile(log);
+        Collection<File> inputFiles = Arrays.asList(Objects.requireNonNull(mOutputDirectory.listFiles()));
 
-        Collection<File> inputFiles;
-        if (iteration > 0) {
-            File dir = frIterationOutputDirectory.get(iteration);
-            if (dir==null)
-                inputFiles = new HashSet<>();
-            else
-                inputFiles = Arrays.asList(dir.listFiles());
+        ZipCreationTask.Params params;
+        Uri documentUri = createArchiveDocument(outputFile.getName());
+        if (documentUri != null) {
+            // The provider can rename the document, the log keeps the name which is really used
+            String displayName = getDocumentDisplayName(documentUri);
+            if (displayName != null) {
+                outputFile = new File(outputFile.getParentFile(), displayName);
+            }
+            log.setZipUri(documentUri.toString());
+            params = new ZipCreationTask.Params(outputFile, documentUri,
+                    mContext.getContentResolver(), inputFiles);
         } else {
-            writeDescriptionFile(log);
-            inputFiles = Arrays.asList(Objects.requireNonNull(mOutputDirectory.listFiles()));
+            params = new ZipCreationTask.Params(outputFile, inputFiles);
         }
 
         ZipCreationTask zipTask = new ZipCreationTask();
-        ZipCreationTask.Params params = new ZipCreationTask.Params(outputFile, inputFiles);
         zipTask.execute(params);
 
         return new Pair<>(outputFile, zipTask);
     }
 
+    /**
+     * Zip the files of a closed iteration on the calling thread
+     *
+     * @return the zip file, null if it cannot be created
+     */
+    @Nullable
+    public File createFrZipFile(String fileName, Integer iteration) {
+
+        File outputFile = getArchiveFile(fileName, iteration);
+
+        File dir = frIterationOutputDirectory.remove(iteration);
+        frIterationFileNames.remove(iteration);
+        Map<WritableObject, File> sensorsFiles = frIterationSensorsFiles.remove(iteration);
+        Map<WritableObject, SegmentBuffer> buffers = frIterationBuffers.remove(iteration);
+
+        if (buffers != null) {
+            return zipSegmentBuffers(outputFile, sensorsFiles, buffers) ? outputFile : null;
+        }
+
+        File[] files = dir == null ? null : dir.listFiles();
+        Collection<File> inputFiles = files == null ? new HashSet<>() : Arrays.asList(files);
+
+        ZipCreationTask zipTask = new ZipCreationTask();
+        if (zipTask.createSynchronously(new ZipCreationTask.Params(outputFile, inputFiles)) < 0) {
+            return null;
+        }
+        return outputFile;
+    }
+
+    // Deflate in-memory files straight into the archive, then give their memory back
+    private boolean zipSegmentBuffers(File outputFile, Map<WritableObject, File> sensorsFiles,
+                                      Map<WritableObject, SegmentBuffer> buffers) {
+        byte[] data = new byte[8192];
+        try (ZipOutputStream out = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+            for (Map.Entry<WritableObject, SegmentBuffer> buffer : buffers.entrySet()) {
+                out.putNextEntry(new ZipEntry(sensorsFiles.get(buffer.getKey()).getName()));
+                buffer.getValue().writeTo(out, data);
+                out.closeEntry();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            for (SegmentBuffer buffer : buffers.values()) {
+                buffer.release();
+            }
+        }
+    }
+
+    // Name is unique in the local folder and in the document tree where the zip is copied
+    private File getArchiveFile(String fileName, Integer iteration) {
+
+        File outputDirectory = getArchiveDirectory(iteration);
+        Set<String> documentNames = iteration > 0 ?
+                Collections.<String>emptySet() : getArchiveDocumentNames();
+
+        File outputFile = new File(outputDirectory, fileName + ".zip");
+        int i = 2;
+        while (outputFile.exists() || documentNames.contains(outputFile.getName())) {
+            outputFile = new File(outputDirectory, fileName + "-" + i++ + ".zip");
+        }
+        return outputFile;
+    }
+
+    // Folder where the zip is written, internal storage is used if the destination is not available
+    private File getArchiveDirectory(Integer iteration) {
+
+        File internalDirectory = iteration > 0 ? currentFrWorkingFolder : mContext.getFilesDir();
+
+        if (mArchiveDestination.type == ArchiveDestination.Type.INTERNAL) {
+            return internalDirectory;
+        }
+
+        // Flight recorder iterations have to be uploaded from a file, so they are written in the
+        // external folder even if a document tree is selected
+        if (mArchiveDestination.type == ArchiveDestination.Type.EXTERNAL || iteration > 0) {
+            File externalDirectory = StorageHelper.getExternalArchiveDirectory(mContext, iteration > 0);
+            return externalDirectory == null ? internalDirectory : externalDirectory;
+        }
+
+        // Document tree: the file is only used as a name, data is streamed to the document
+        return internalDirectory;
+    }
+
+    private boolean isDocumentTreeDestination() {
+        return mArchiveDestination.type == ArchiveDestination.Type.DOCUMENT_TREE &&
+                mArchiveDestination.treeUri != null &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    // Names of the documents already in the selected tree
+    private Set<String> getArchiveDocumentNames() {
+
+        Set<String> names = new HashSet<>();
+        if (!isDocumentTreeDestination()) {
+            return names;
+        }
+
+        Uri treeUri = Uri.parse(mArchiveDestination.treeUri);
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        try (Cursor cursor = mContext.getContentResolver().query(childrenUri,
+                new String[]{DocumentsContract.Document.COLUMN_DISPLAY_NAME}, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } catch (SecurityException | IllegalArgumentException e) {
+            android.util.Log.e(Application.LOG_TAG, "RecorderWriter: cannot list document tree", e);
+        }
+        return names;
+    }
+
+    @Nullable
+    private String getDocumentDisplayName(Uri documentUri) {
+        try (Cursor cursor = mContext.getContentResolver().query(documentUri,
+                new String[]{DocumentsContract.Document.COLUMN_DISPLAY_NAME}, null, null, null)) {
+            return cursor != null && cursor.moveToFirst() ? cursor.getString(0) : null;
+        } catch (SecurityException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private Uri createArchiveDocument(String displayName) {
+
+        if (!isDocumentTreeDestination()) {
+            return null;
+        }
+
+        Uri treeUri = Uri.parse(mArchiveDestination.treeUri);
+        Uri parentUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        try {
+            return DocumentsContract.createDocument(mContext.getContentResolver(), parentUri,
+                    "application/zip", displayName);
+        } catch (FileNotFoundException | SecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
 
     public void writeReferences(LinkedList<PositionReference> references) throws FileNotFoundException {
         if (references.isEmpty()) return;
@@ -348,4 +606,16 @@ public class RecorderWriter {
         }
 
     }
+
+    void writeClockSync(List<ClockSync.Sample> samples, Log.RecordTimes recordTimes)
+            throws FileNotFoundException {
+        if (samples.isEmpty()) return;
+
+        FieldsWritableObject csWritableObject = ClockSync.getFieldsWritableObject();
+        createFile(csWritableObject);
+        for (ClockSync.Sample sample : samples) {
+            write(csWritableObject, recordTimes.sinceStart(sample.elapsedRealtimeNanos), null,
+                    sample.toObject());
+        }
+    }
 }
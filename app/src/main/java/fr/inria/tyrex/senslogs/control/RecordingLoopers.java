@@ -0,0 +1,50 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Dedicated threads on which sensors, locations and broadcasts callbacks are dispatched during a
+ * record, so events are never delayed by the UI thread.
+ * High rate events from the SensorManager have their own thread, other sources (locations, NMEA,
+ * wifi scans, battery) share a second one.
+ * Threads are started on first use and live as long as the application.
+ */
+public class RecordingLoopers {
+
+    private static HandlerThread sSensorsThread;
+    private static Handler sSensorsHandler;
+
+    private static HandlerThread sRadioThread;
+    private static Handler sRadioHandler;
+
+    /**
+     * Handler for SensorManager listeners
+     */
+    public static synchronized Handler getSensorsHandler() {
+        if (sSensorsHandler == null) {
+            sSensorsThread = new HandlerThread("SensorsLooper", Process.THREAD_PRIORITY_MORE_FAVORABLE);
+            sSensorsThread.start();
+            sSensorsHandler = new Handler(sSensorsThread.getLooper());
+        }
+        return sSensorsHandler;
+    }
+
+    /**
+     * Handler for location listeners and broadcast receivers
+     */
+    public static synchronized Handler getRadioHandler() {
+        if (sRadioHandler == null) {
+            sRadioThread = new HandlerThread("RadioLooper", Process.THREAD_PRIORITY_DEFAULT);
+            sRadioThread.start();
+            sRadioHandler = new Handler(sRadioThread.getLooper());
+        }
+        return sRadioHandler;
+    }
+
+    public static Looper getRadioLooper() {
+        return getRadioHandler().getLooper();
+    }
+}
@@ -0,0 +1,153 @@
+package fr.inria.tyrex.senslogs.control;
+
+import com.thegrizzlylabs.sardineandroid.Sardine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import fr.inria.tyrex.senslogs.Application;
+import okhttp3.Credentials;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Upload of a file to a WebDAV server by chunks, so a failed upload can be resumed.
+ * Chunks are written with partial PUT (Content-Range) in a temporary resource which is moved to
+ * its final url once complete. If the server does not accept partial PUT, the file is sent at once.
+ */
+class ResumableUpload {
+
+    private final static String TEMPORARY_SUFFIX = ".part";
+
+    interface Checkpoint {
+        /**
+         * Called each time a chunk has been stored by the server
+         *
+         * @param offset number of bytes of the file stored by the server
+         */
+        void onProgress(long offset);
+    }
+
+    private final OkHttpClient mClient;
+    private final Sardine mSardine;
+    private final String mCredentials;
+    private final int mChunkSize;
+
+    ResumableUpload(OkHttpClient client, Sardine sardine, String username, String password,
+                    int chunkSize) {
+        mClient = client;
+        mSardine = sardine;
+        mCredentials = Credentials.basic(username, password);
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * @param offset bytes already stored by the server during a previous attempt
+     */
+    void upload(File file, String url, String mimeType, long offset, Checkpoint checkpoint)
+            throws IOException {
+
+        long size = file.length();
+
+        // Small files are not worth a temporary resource
+        if (size <= mChunkSize) {
+            mSardine.put(url, file, mimeType);
+            checkpoint.onProgress(size);
+            return;
+        }
+
+        String temporaryUrl = url + TEMPORARY_SUFFIX;
+
+        // Server is the reference, it may have lost the end of the previous attempt
+        offset = Math.min(offset, getRemoteSize(temporaryUrl));
+
+        if (offset > 0) {
+            android.util.Log.d(Application.LOG_TAG, "ResumableUpload: resuming " + url + " at " + offset + "/" + size);
+        }
+
+        MediaType mediaType = mimeType == null ? null : MediaType.parse(mimeType);
+        byte[] buffer = new byte[mChunkSize];
+
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            while (offset < size) {
+                int length = (int) Math.min(mChunkSize, size - offset);
+                input.seek(offset);
+                input.readFully(buffer, 0, length);
+
+                Request request = new Request.Builder()
+                        .url(temporaryUrl)
+                        .header("Authorization", mCredentials)
+                        .header("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + size)
+                        .put(RequestBody.create(mediaType, buffer, 0, length))
+                        .build();
+
+                try (Response response = mClient.newCall(request).execute()) {
+                    if (!response.isSuccessful()) {
+                        if (offset == 0 && isPartialPutUnsupported(response.code())) {
+                            android.util.Log.d(Application.LOG_TAG, "ResumableUpload: partial PUT not supported, sending " + url + " at once");
+                            mSardine.put(url, file, mimeType);
+                            checkpoint.onProgress(size);
+                            return;
+                        }
+                        throw new IOException("Chunk upload failed: " + response.code());
+                    }
+                }
+
+                offset += length;
+                checkpoint.onProgress(offset);
+            }
+        }
+
+        // A server which ignores Content-Range keeps only the last chunk
+        long remoteSize = getRemoteSize(temporaryUrl);
+        if (remoteSize != size) {
+            android.util.Log.d(Application.LOG_TAG, "ResumableUpload: " + temporaryUrl + " has " +
+                    remoteSize + "/" + size + " bytes, sending " + url + " at once");
+            mSardine.delete(temporaryUrl);
+            mSardine.put(url, file, mimeType);
+            checkpoint.onProgress(size);
+            return;
+        }
+
+        mSardine.move(temporaryUrl, url);
+    }
+
+    /**
+     * @return size of the resource, 0 if it does not exist
+     * @throws IOException if the server is not able to tell, the attempt is retried later
+     */
+    private long getRemoteSize(String url) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Authorization", mCredentials)
+                .head()
+                .build();
+        try (Response response = mClient.newCall(request).execute()) {
+            if (isTransientFailure(response.code())) {
+                throw new IOException("Size request failed: " + response.code());
+            }
+            if (!response.isSuccessful()) {
+                return 0;
+            }
+            String contentLength = response.header("Content-Length");
+            try {
+                return contentLength == null ? 0 : Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    // Stored chunks must not be sent again because the server is busy
+    private static boolean isTransientFailure(int code) {
+        return code == 408 || code == 429 || (code >= 500 && code != 501);
+    }
+
+    private static boolean isPartialPutUnsupported(int code) {
+        return code == 400 || code == 405 || code == 416 || code == 501;
+    }
+}
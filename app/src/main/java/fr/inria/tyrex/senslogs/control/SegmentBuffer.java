@@ -0,0 +1,98 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory content of a flight recorder segment file.
+ * Data is stored in off-heap chunks taken from a shared pool and given back once the segment
+ * has been zipped, so a recording allocates chunks only for its first segments.
+ */
+class SegmentBuffer extends OutputStream {
+
+    private final static int CHUNK_SIZE = 64 * 1024;
+    // Chunks kept in the pool when they are released, 16 MB
+    private final static int MAX_POOLED_CHUNKS = 256;
+
+    private final static ConcurrentLinkedQueue<ByteBuffer> sPool = new ConcurrentLinkedQueue<>();
+    private final static AtomicInteger sPoolSize = new AtomicInteger();
+
+    private final List<ByteBuffer> mChunks = new ArrayList<>();
+    private ByteBuffer mCurrentChunk;
+    private long mSize;
+
+    @Override
+    public void write(int b) {
+        if (mCurrentChunk == null || !mCurrentChunk.hasRemaining()) {
+            nextChunk();
+        }
+        mCurrentChunk.put((byte) b);
+        mSize++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (mCurrentChunk == null || !mCurrentChunk.hasRemaining()) {
+                nextChunk();
+            }
+            int count = Math.min(len, mCurrentChunk.remaining());
+            mCurrentChunk.put(b, off, count);
+            off += count;
+            len -= count;
+            mSize += count;
+        }
+    }
+
+    long size() {
+        return mSize;
+    }
+
+    /**
+     * Copy the content to a stream, buffer is used to move data from the off-heap chunks
+     */
+    void writeTo(OutputStream out, byte[] buffer) throws IOException {
+        for (ByteBuffer chunk : mChunks) {
+            ByteBuffer data = chunk.duplicate();
+            data.flip();
+            while (data.hasRemaining()) {
+                int count = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Give the chunks back to the pool, the buffer must not be used anymore
+     */
+    void release() {
+        for (ByteBuffer chunk : mChunks) {
+            if (sPoolSize.incrementAndGet() > MAX_POOLED_CHUNKS) {
+                sPoolSize.decrementAndGet();
+                continue;
+            }
+            chunk.clear();
+            sPool.offer(chunk);
+        }
+        mChunks.clear();
+        mCurrentChunk = null;
+        mSize = 0;
+    }
+
+    private void nextChunk() {
+        ByteBuffer chunk = sPool.poll();
+        if (chunk != null) {
+            sPoolSize.decrementAndGet();
+        } else {
+            chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+        mChunks.add(chunk);
+        mCurrentChunk = chunk;
+    }
+}
@@ -1,32 +1,117 @@
 package fr.inria.tyrex.senslogs.control;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.os.SystemClock;
 import android.webkit.MimeTypeMap;
 
 import com.thegrizzlylabs.sardineandroid.Sardine;
 import com.thegrizzlylabs.sardineandroid.impl.OkHttpSardine;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.sql.Time;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 
-public class SendQueue extends Thread {
-    private Map<Integer, File> filesToSend;
-    private Map<Long, String> requestsToSend;
+/**
+ * Queue of files and requests sent to the web server.
+ * Items are split in two lanes, each processed by its own pool of upload workers, so realtime
+ * requests are never queued behind archives. Archives are sent in iteration order and yield a
+ * part of the bandwidth while realtime requests are in flight. Realtime POSTs which missed their
+ * deadline are coalesced in a single request. Each item has at most one attempt in flight and
+ * all workers share the same http client, so connections are reused.
+ * The queue is persisted in a journal, pending items are sent again after a restart.
+ * Files are uploaded by chunks, a failed upload resumes from the last chunk stored by the server.
+ * There is no polling: the queue is processed when an item is added, when an upload ends, when
+ * network or power state changes and when the backoff of a failed item expires.
+ */
+public class SendQueue {
+
+    private final static String JOURNAL_DIRECTORY = "send_queue";
+    private final static String JOURNAL_FILE = "journal";
+
+    // Delay before retrying a failed item, doubled at each attempt and randomized by half
+    private final static long BACKOFF_MIN_MS = 1000;
+    private final static long BACKOFF_MAX_MS = 5 * 60 * 1000;
+
+    private final static MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    public enum Kind {FILE, REQUEST, POST}
+
+    public enum Lane {REALTIME, BULK}
+
+    // Realtime requests first, then archives by iteration
+    private final static Comparator<Item> PRIORITY = (item1, item2) -> {
+        if (item1.getLane() != item2.getLane())
+            return item1.getLane().compareTo(item2.getLane());
+        if (item1.getLane() == Lane.BULK && item1.index != item2.index)
+            return item1.index < item2.index ? -1 : 1;
+        return item1.id < item2.id ? -1 : (item1.id == item2.id ? 0 : 1);
+    };
+
+    /**
+     * Element of the queue, identified by a sequence number
+     */
+    static class Item {
+        long id;
+        Kind kind;
+        // File path or url
+        String value;
+        // Json body of POST requests
+        String payload;
+        // Iteration of the flight recorder for files
+        int index;
+        // Archives must not be deleted once sent
+        boolean keep;
+        // Bytes of the file already stored by the server
+        long uploadedBytes;
+
+        transient int attempts;
+        transient long nextAttemptTime;
+        // Elapsed realtime when the item has been added, or loaded from the journal
+        transient long enqueueTime;
+        // Loaded from the journal: the previous process may have sent it without acknowledging
+        transient boolean restored;
+
+        Lane getLane() {
+            return kind == Kind.FILE ? Lane.BULK : Lane.REALTIME;
+        }
+    }
+
+    // Pending items, an item is removed from this map while it is in flight
+    private final Map<Long, Item> mPendingItems;
+    // Items currently handled by a worker
+    private final Map<Long, Item> mItemsInFlight;
+    private final AtomicLong mSequence;
+    private final SendQueueJournal mJournal;
 
     private final Context mContext;
 
@@ -34,15 +119,31 @@ public class SendQueue extends Thread {
     private String webDavPassword = "";
     private String webDavUrl = "";
 
-    private Timer timer;
-    private TimerTask timerTask = new TimerTask() {
-        @Override
-        public void run() {
-            handleQueues();
-        }
-    };
+    private final int mRealtimeWorkers;
+    private final int mBulkWorkers;
+    private ExecutorService mRealtimeExecutor;
+    private ExecutorService mBulkExecutor;
+    // Percentage of the time archives keep uploading while realtime requests are in flight
+    private final int mBulkShare;
+    // Realtime POSTs older than this deadline are coalesced
+    private final long mRealtimeDeadline;
 
-    OkHttpClient client = new OkHttpClient();
+    // Archives policies, realtime requests are sent on any network
+    private final boolean mArchivesOnMetered;
+    private final boolean mArchivesOnBattery;
+    private final UploadConditions mConditions;
+
+    private ScheduledExecutorService mScheduler;
+    private ScheduledFuture<?> mWakeUp;
+    private final Random mRandom = new Random();
+    // When true, the queue stops by itself once every item has been sent
+    private boolean mStopWhenIdle = true;
+
+    private final OkHttpClient client;
+    private final Sardine sardine;
+    private final ResumableUpload mUpload;
+
+    private final Statistics mStatistics = new Statistics();
 
     String getUrl(String url) throws IOException {
         Request request = new Request.Builder()
@@ -53,11 +154,9 @@ public class SendQueue extends Thread {
         }
     }
 
-    private boolean isNetworkAvailable() {
-        ConnectivityManager connectivityManager
-                = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
-        return activeNetworkInfo != null && activeNetworkInfo.isConnected();
+    private boolean areArchivesAllowed() {
+        return (mArchivesOnMetered || !mConditions.isMetered()) &&
+                (mArchivesOnBattery || mConditions.isCharging());
     }
 
     public static String getMimeType(String url) {
@@ -70,122 +169,510 @@ public class SendQueue extends Thread {
     }
 
     public SendQueue(Context context) {
+        this(context, context.getResources().getInteger(R.integer.upload_workers_realtime),
+                context.getResources().getInteger(R.integer.upload_workers_bulk));
+    }
+
+    public SendQueue(Context context, int realtimeWorkers, int bulkWorkers) {
         mContext = context;
+        mRealtimeWorkers = Math.max(1, realtimeWorkers);
+        mBulkWorkers = Math.max(1, bulkWorkers);
+        mBulkShare = Math.max(1, Math.min(100,
+                context.getResources().getInteger(R.integer.upload_bulk_share_percent)));
+        mRealtimeDeadline = context.getResources().getInteger(R.integer.realtime_deadline_s) * 1000L;
         webDavUsername = context.getResources().getString(R.string.webdav_username);
         webDavPassword = context.getResources().getString(R.string.webdav_password);
         webDavUrl = context.getResources().getString(R.string.webdav_url);
+        mArchivesOnMetered = context.getResources().getBoolean(R.bool.upload_archives_on_metered);
+        mArchivesOnBattery = context.getResources().getBoolean(R.bool.upload_archives_on_battery);
+        mConditions = new UploadConditions(context, () -> wakeUp(0));
+
+        client = new OkHttpClient();
+        sardine = new OkHttpSardine(client);
+        sardine.setCredentials(webDavUsername, webDavPassword);
+        mUpload = new ResumableUpload(client, sardine, webDavUsername, webDavPassword,
+                context.getResources().getInteger(R.integer.upload_chunk_size_kb) * 1024);
+
+        mItemsInFlight = new ConcurrentHashMap<>();
+
+        // Journal is stored outside of files dir which is cleaned on startup
+        mJournal = new SendQueueJournal(new File(
+                context.getDir(JOURNAL_DIRECTORY, Context.MODE_PRIVATE), JOURNAL_FILE),
+                this::getUnacknowledgedItems);
+        mPendingItems = new ConcurrentHashMap<>(mJournal.load());
+        long lastId = 0;
+        long now = SystemClock.elapsedRealtime();
+        for (Item item : mPendingItems.values()) {
+            lastId = Math.max(lastId, item.id);
+            item.enqueueTime = now;
+            item.restored = true;
+        }
+        mSequence = new AtomicLong(lastId);
+        mJournal.compact();
 
-        this.filesToSend = new HashMap<>();
-        this.requestsToSend = new HashMap<>();
+        if (!mPendingItems.isEmpty()) {
+            android.util.Log.d(Application.LOG_TAG, "SendQueue: resuming " + mPendingItems.size() + " pending items");
+            startInternal();
+        }
     }
 
     public void addFileToQueue(Integer index, File file) {
-        this.filesToSend.put(index, file);
+        addFileToQueue(index, file, true);
+    }
+
+    public void addFileToQueue(Integer index, File file, boolean deleteOnSent) {
+        Item item = new Item();
+        item.kind = Kind.FILE;
+        item.value = file.getAbsolutePath();
+        item.index = index;
+        item.keep = !deleteOnSent;
+        addItem(item);
     }
 
     public void addRequestToQueue(String url) {
-        Long time = System.currentTimeMillis();
-        this.requestsToSend.put(time, url);
+        Item item = new Item();
+        item.kind = Kind.REQUEST;
+        item.value = url;
+        addItem(item);
+    }
+
+    /**
+     * Queue a json POST, the body is gzip compressed when it is sent
+     */
+    public void addPostToQueue(String url, String json) {
+        Item item = new Item();
+        item.kind = Kind.POST;
+        item.value = url;
+        item.payload = json;
+        addItem(item);
+    }
+
+    private void addItem(Item item) {
+        item.id = mSequence.incrementAndGet();
+        item.enqueueTime = SystemClock.elapsedRealtime();
+        // Put first, so a compaction which does not see the record still writes the item
+        mPendingItems.put(item.id, item);
+        mJournal.append(item);
+        // Items queued after the end of a record are sent anyway
+        startInternal();
+        wakeUp(0);
     }
 
-    private void clearFilesQueue(boolean deleteFiles) {
-        // TODO: delete un-sent files
-        this.filesToSend = new HashMap<>();
+    /**
+     * Time spent in the queue by the oldest item not sent yet, 0 if the queue is empty
+     */
+    public long getOldestItemAge() {
+        long oldest = Long.MAX_VALUE;
+        for (Item item : getUnacknowledgedItems()) {
+            oldest = Math.min(oldest, item.enqueueTime);
+        }
+        return oldest == Long.MAX_VALUE ? 0 : SystemClock.elapsedRealtime() - oldest;
     }
 
-    private void clearRequestsQueue() {
-        this.requestsToSend = new HashMap<>();
+    /**
+     * Files of the queue not sent yet, they must not be removed from the disk
+     */
+    public Set<File> getPendingFiles() {
+        Set<File> files = new HashSet<>();
+        for (Item item : getUnacknowledgedItems()) {
+            if (item.kind == Kind.FILE) files.add(new File(item.value));
+        }
+        return files;
     }
 
-    @Override
-    public void run() {
-        super.run();
+    // Items in flight are dropped too, they are not queued again when their worker finishes
+    private void clearQueue(boolean deleteFiles) {
+        List<Item> items = getUnacknowledgedItems();
+        mPendingItems.clear();
+        mItemsInFlight.clear();
+        mJournal.compact();
+        if (!deleteFiles) return;
+        for (Item item : items) {
+            if (item.kind != Kind.FILE || item.keep) continue;
+            if (new File(item.value).delete())
+                android.util.Log.d(Application.LOG_TAG, "SendQueue: un-sent file " + item.value + " deleted");
+        }
     }
 
-    @Override
     public synchronized void start() {
-        super.start();
-        // Start a loop that will check every second if we have network and then process the queues
-        if(timer != null) {
+        mStopWhenIdle = false;
+        startInternal();
+    }
+
+    private synchronized void startInternal() {
+        if (mScheduler != null) {
             return;
         }
-        timer = new Timer();
-        timer.scheduleAtFixedRate(timerTask, 0, 1000);
-    }
-
-    public void terminate(boolean isCancelled) {
-        timer.cancel();
-        timer = null;
-        clearFilesQueue(isCancelled);
-        clearRequestsQueue();
-        this.interrupt();
-    }
-
-    private void sendFile(Integer index, File file) {
-        Thread thread = new Thread(new Runnable(){
-            @Override
-            public void run() {
-                try {
-                    // Note: we remove the file from the index before any other operation in order to avoid another simultaneous "call" for this file
-                    filesToSend.remove(index);
-                    Sardine sardine = new OkHttpSardine();
-                    sardine.setCredentials(webDavUsername, webDavPassword);
-                    String filename = webDavUrl + "/" + file.getName();
-                    try {
-                        android.util.Log.d(Application.LOG_TAG, "SendQueue: sending file to webdav " + filename);
-                        sardine.put(filename, file, getMimeType(filename));
-                        if (file.delete())
-                            android.util.Log.d(Application.LOG_TAG, "SendQueue: file " + file.toString() + " deleted for index " + index);
-                    } catch (IOException e) {
-                        // On failed, we re-queue the file
-                        filesToSend.put(index, file);
-                    }
-                } catch (Exception e) {
-                    // On failed, we re-queue the file
-                    filesToSend.put(index, file);
-                }
+        mRealtimeExecutor = new ThreadPoolExecutor(mRealtimeWorkers, mRealtimeWorkers, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        mBulkExecutor = new ThreadPoolExecutor(mBulkWorkers, mBulkWorkers, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mStatistics.reset();
+        mConditions.start();
+        wakeUp(0);
+    }
+
+    /**
+     * Process the queue after a delay, an earlier wake up is kept
+     */
+    private synchronized void wakeUp(long delayMs) {
+        if (mScheduler == null) {
+            return;
+        }
+        if (mWakeUp != null) {
+            if (mWakeUp.getDelay(TimeUnit.MILLISECONDS) <= delayMs) return;
+            mWakeUp.cancel(false);
+        }
+        mWakeUp = mScheduler.schedule(this::handleQueues, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * End of a record
+     *
+     * @param isCancelled if true, pending items are dropped and their files deleted, otherwise
+     *                    they are still sent and the queue stops once it is empty
+     */
+    public synchronized void terminate(boolean isCancelled) {
+        mStopWhenIdle = true;
+        if (!isCancelled) {
+            // The queue may already be idle, in which case nothing else would stop it
+            wakeUp(0);
+            return;
+        }
+        clearQueue(true);
+        stop();
+    }
+
+    private synchronized void stop() {
+        if (mScheduler == null) {
+            return;
+        }
+        android.util.Log.d(Application.LOG_TAG, "SendQueue: stopped, " + mStatistics);
+        mConditions.stop();
+        mScheduler.shutdownNow();
+        mScheduler = null;
+        mWakeUp = null;
+        mRealtimeExecutor.shutdownNow();
+        mRealtimeExecutor = null;
+        mBulkExecutor.shutdownNow();
+        mBulkExecutor = null;
+    }
+
+    public Statistics getStatistics() {
+        return mStatistics;
+    }
+
+    // Items which are not acknowledged, an item is always in one of the two maps
+    private List<Item> getUnacknowledgedItems() {
+        List<Item> items = new ArrayList<>(mPendingItems.values());
+        items.addAll(mItemsInFlight.values());
+        return items;
+    }
+
+    private void onSent(Item item) {
+        mStatistics.onDelivered(SystemClock.elapsedRealtime() - item.enqueueTime, item);
+        mItemsInFlight.remove(item.id);
+        mJournal.acknowledge(item.id);
+        wakeUp(0);
+    }
+
+    private void onFailed(Item item) {
+        mStatistics.onFailed();
+        item.attempts++;
+        long backoff = Math.min(BACKOFF_MAX_MS, BACKOFF_MIN_MS << Math.min(item.attempts - 1, 20));
+        // Jitter avoids all clients retrying at the same time when the server comes back
+        item.nextAttemptTime = SystemClock.elapsedRealtime() + backoff / 2 +
+                (long) (mRandom.nextDouble() * backoff / 2);
+        // On failed, we re-queue the item, unless the queue has been cleared while it was in flight
+        synchronized (this) {
+            if (!mItemsInFlight.containsKey(item.id)) return;
+            mPendingItems.put(item.id, item);
+            mItemsInFlight.remove(item.id);
+        }
+        wakeUp(0);
+    }
+
+    private void sendFile(Item item) {
+        File file = new File(item.value);
+        String filename = webDavUrl + "/" + file.getName();
+        try {
+            if (!file.exists()) {
+                android.util.Log.e(Application.LOG_TAG, "SendQueue: file " + file + " does not exist anymore");
+                onSent(item);
+                return;
             }
-        });
-        thread.start();
+            android.util.Log.d(Application.LOG_TAG, "SendQueue: sending file to webdav " + filename);
+            long startOffset = item.uploadedBytes;
+            final long[] chunkStartTime = {SystemClock.elapsedRealtime()};
+            mUpload.upload(file, filename, getMimeType(filename), startOffset, offset -> {
+                item.uploadedBytes = offset;
+                mJournal.checkpoint(item.id, offset);
+                yieldToRealtime(SystemClock.elapsedRealtime() - chunkStartTime[0]);
+                chunkStartTime[0] = SystemClock.elapsedRealtime();
+            });
+            mStatistics.onUploaded(Math.max(0, file.length() - startOffset));
+            onSent(item);
+            if (item.keep)
+                android.util.Log.d(Application.LOG_TAG, "SendQueue: file " + file.toString() + " kept for index " + item.index);
+            else if (file.delete())
+                android.util.Log.d(Application.LOG_TAG, "SendQueue: file " + file.toString() + " deleted for index " + item.index);
+        } catch (Exception e) {
+            onFailed(item);
+        }
     }
 
-    private void sendRequest(Long timestamp, String url) {
-        // Note: we remove the request from the index before any other operation in order to avoid another simultaneous "call" for this request
-        requestsToSend.remove(timestamp);
-        String response = "";
+    // Pause an archive upload between two chunks to leave bandwidth to realtime requests
+    private void yieldToRealtime(long chunkDuration) {
+        if (mBulkShare >= 100 || !hasRealtimeItems()) return;
+        long pause = Math.min(10000, chunkDuration * (100 - mBulkShare) / mBulkShare);
         try {
-            response = getUrl(url);
+            Thread.sleep(pause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean hasRealtimeItems() {
+        for (Item item : getUnacknowledgedItems()) {
+            if (item.getLane() == Lane.REALTIME) return true;
+        }
+        return false;
+    }
+
+    private void sendRequest(Item item) {
+        try {
+            String response = getUrl(item.value);
+            mStatistics.onUploaded(item.value.length());
+            onSent(item);
             android.util.Log.d(Application.LOG_TAG, "SendQueue: sendRequest response " + response);
         } catch (IOException e) {
             //e.printStackTrace();
-            requestsToSend.put(timestamp, url);
+            onFailed(item);
+        }
+    }
+
+    private void sendPost(Item item) {
+        try {
+            byte[] body = gzip(item.payload);
+            Request request = new Request.Builder()
+                    .url(item.value)
+                    .header("Content-Encoding", "gzip")
+                    .post(RequestBody.create(JSON, body))
+                    .build();
+            try (Response response = client.newCall(request).execute()) {
+                if (!response.isSuccessful()) {
+                    throw new IOException("Unexpected response " + response.code());
+                }
+            }
+            mStatistics.onUploaded(body.length);
+            onSent(item);
+        } catch (IOException e) {
+            onFailed(item);
+        }
+    }
+
+    private static byte[] gzip(String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream output = new GZIPOutputStream(bytes)) {
+            output.write(value.getBytes(Charset.forName("UTF-8")));
+        }
+        return bytes.toByteArray();
+    }
+
+    // Merge realtime POSTs to the same url which missed their deadline, in a json array
+    private void coalesceStaleRequests(long now) {
+        Map<String, List<Item>> staleItems = new LinkedHashMap<>();
+        for (Item item : mPendingItems.values()) {
+            if (item.kind != Kind.POST || now - item.enqueueTime < mRealtimeDeadline) continue;
+            List<Item> items = staleItems.get(item.value);
+            if (items == null) {
+                items = new ArrayList<>();
+                staleItems.put(item.value, items);
+            }
+            items.add(item);
+        }
+
+        for (List<Item> items : staleItems.values()) {
+            if (items.size() < 2) continue;
+            Collections.sort(items, PRIORITY);
+            StringBuilder payload = new StringBuilder("[");
+            for (Item item : items) {
+                if (payload.length() > 1) payload.append(',');
+                // Items already coalesced are arrays
+                if (item.payload.startsWith("["))
+                    payload.append(item.payload, 1, item.payload.length() - 1);
+                else
+                    payload.append(item.payload);
+            }
+            payload.append(']');
+
+            // First item is replaced in the journal, the others are acknowledged
+            Item first = items.get(0);
+            first.payload = payload.toString();
+            mJournal.append(first);
+            for (Item item : items.subList(1, items.size())) {
+                mPendingItems.remove(item.id);
+                mJournal.acknowledge(item.id);
+            }
+            android.util.Log.d(Application.LOG_TAG, "SendQueue: " + items.size() + " stale requests coalesced");
         }
     }
 
-    // This is the main function called every second
-    private void handleQueues() {
-        if (requestsToSend.isEmpty() && filesToSend.isEmpty())
+    // Submit items which can be sent and schedule the next backoff expiration
+    private synchronized void handleQueues() {
+        mWakeUp = null;
+        if (mScheduler == null)
             return;
-        if (!isNetworkAvailable()) {
+        if (mPendingItems.isEmpty()) {
+            if (mStopWhenIdle && mItemsInFlight.isEmpty())
+                stop();
+            return;
+        }
+        // Connectivity callbacks will wake the queue up
+        if (!mConditions.isConnected()) {
             android.util.Log.d(Application.LOG_TAG, "SendQueue: no network, waiting...");
             return ;
         }
-        android.util.Log.d(Application.LOG_TAG, "SendQueue: network found, processing queue");
-        // Important: we create a copy of the collection (to be used in the loop) in order to avoid the "java.util.ConcurrentModificationException" error
-        Map<Long, String> requests = new HashMap<>();
-        for (Map.Entry<Long, String> item : requestsToSend.entrySet()) {
-            requests.put(item.getKey(), item.getValue());
+        boolean archivesAllowed = areArchivesAllowed();
+        long now = SystemClock.elapsedRealtime();
+        long nextAttemptTime = Long.MAX_VALUE;
+        coalesceStaleRequests(now);
+        List<Item> items = new ArrayList<>(mPendingItems.values());
+        Collections.sort(items, PRIORITY);
+        // Note: an item is removed from the queue before being submitted, so it can't be sent twice simultaneously
+        for (final Item item : items) {
+            long id = item.id;
+            if (mItemsInFlight.containsKey(id))
+                continue;
+            if (item.kind == Kind.FILE && !archivesAllowed)
+                continue;
+            if (item.nextAttemptTime > now) {
+                nextAttemptTime = Math.min(nextAttemptTime, item.nextAttemptTime);
+                continue;
+            }
+            mItemsInFlight.put(id, item);
+            mPendingItems.remove(id);
+            if (item.kind == Kind.FILE)
+                mBulkExecutor.execute(() -> sendFile(item));
+            else if (item.kind == Kind.POST)
+                mRealtimeExecutor.execute(() -> sendPost(item));
+            else
+                mRealtimeExecutor.execute(() -> sendRequest(item));
         }
-        for (Map.Entry<Long, String> item : requests.entrySet()) {
-            sendRequest(item.getKey(), item.getValue());
+        if (nextAttemptTime != Long.MAX_VALUE) {
+            wakeUp(nextAttemptTime - now);
         }
-        // Important: we create a copy of the collection (to be used in the loop) in order to avoid the "java.util.ConcurrentModificationException" error
-        Map<Integer, File> files = new HashMap<>();
-        for (Map.Entry<Integer, File> item : filesToSend.entrySet()) {
-            files.put(item.getKey(), item.getValue());
+    }
+
+
+    /**
+     * Throughput and latency of the queue since it has been started.
+     * Latency is the time between the insertion of an item and its delivery.
+     * Retried items have been delivered after at least one failure. Restored items have been
+     * delivered after a restart, they may be duplicates on the server.
+     */
+    public static class Statistics {
+        private final AtomicLong mUploads = new AtomicLong();
+        private final AtomicLong mFailures = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mDelivered = new AtomicLong();
+        private final AtomicLong mLatencySum = new AtomicLong();
+        private final AtomicLong mMaxLatency = new AtomicLong();
+        private final AtomicLong mRetried = new AtomicLong();
+        private final AtomicLong mRestored = new AtomicLong();
+        private volatile long mStartTime;
+
+        private void reset() {
+            mUploads.set(0);
+            mFailures.set(0);
+            mBytes.set(0);
+            mDelivered.set(0);
+            mLatencySum.set(0);
+            mMaxLatency.set(0);
+            mRetried.set(0);
+            mRestored.set(0);
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+
+        private void onDelivered(long latencyMs, Item item) {
+            mDelivered.incrementAndGet();
+            if (item.attempts > 0) mRetried.incrementAndGet();
+            if (item.restored) mRestored.incrementAndGet();
+            mLatencySum.addAndGet(latencyMs);
+            long max;
+            while (latencyMs > (max = mMaxLatency.get()) &&
+                    !mMaxLatency.compareAndSet(max, latencyMs)) ;
+        }
+
+        private void onUploaded(long bytes) {
+            mUploads.incrementAndGet();
+            mBytes.addAndGet(bytes);
+        }
+
+        private void onFailed() {
+            mFailures.incrementAndGet();
+        }
+
+        public long getUploads() {
+            return mUploads.get();
+        }
+
+        public long getFailures() {
+            return mFailures.get();
+        }
+
+        public long getBytes() {
+            return mBytes.get();
+        }
+
+        public double getUploadsPerSecond() {
+            return mUploads.get() / getElapsedSeconds();
         }
-        for (Map.Entry<Integer, File> item : files.entrySet()) {
-            sendFile(item.getKey(), item.getValue());
+
+        public double getBytesPerSecond() {
+            return mBytes.get() / getElapsedSeconds();
+        }
+
+        public double getAverageLatencyMs() {
+            long delivered = mDelivered.get();
+            return delivered == 0 ? 0 : (double) mLatencySum.get() / delivered;
+        }
+
+        public long getMaxLatencyMs() {
+            return mMaxLatency.get();
+        }
+
+        public long getDelivered() {
+            return mDelivered.get();
+        }
+
+        public long getRetried() {
+            return mRetried.get();
+        }
+
+        public long getRestored() {
+            return mRestored.get();
+        }
+
+        private double getElapsedSeconds() {
+            return Math.max(1, SystemClock.elapsedRealtime() - mStartTime) / 1e3d;
+        }
+
+        @Override
+        public String toString() {
+            return "SendQueue.Statistics{" +
+                    "uploads=" + getUploads() +
+                    ", delivered=" + getDelivered() +
+                    ", retried=" + getRetried() +
+                    ", restored=" + getRestored() +
+                    ", failures=" + getFailures() +
+                    ", bytes=" + getBytes() +
+                    ", uploadsPerSecond=" + getUploadsPerSecond() +
+                    ", bytesPerSecond=" + getBytesPerSecond() +
+                    ", averageLatencyMs=" + getAverageLatencyMs() +
+                    ", maxLatencyMs=" + getMaxLatencyMs() +
+                    '}';
         }
     }
 }
@@ -0,0 +1,184 @@
+package fr.inria.tyrex.senslogs.control;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fr.inria.tyrex.senslogs.Application;
+
+/**
+ * Append-only journal of the {@link SendQueue}.
+ * Each line is a json record: an item added to the queue, the upload progress of an item or the
+ * acknowledgement of a sent item.
+ * The journal is rewritten with the pending items only when too many acknowledgements are stored.
+ */
+class SendQueueJournal {
+
+    /**
+     * Items of the queue not acknowledged yet, read under the lock of the journal so a compaction
+     * can not miss an item appended at the same time
+     */
+    interface PendingItems {
+        Collection<SendQueue.Item> get();
+    }
+
+    private final static Charset CHARSET = Charset.forName("UTF-8");
+
+    // Number of acknowledgements before the journal is compacted
+    final static int COMPACTION_THRESHOLD = 500;
+
+    private final File mFile;
+    private final PendingItems mPendingItems;
+    private final Gson mGson = new Gson();
+    private Writer mWriter;
+    private int mAcknowledgements;
+
+    SendQueueJournal(File file, PendingItems pendingItems) {
+        mFile = file;
+        mPendingItems = pendingItems;
+    }
+
+    /**
+     * Replay the journal
+     *
+     * @return items added and not acknowledged, in insertion order
+     */
+    synchronized Map<Long, SendQueue.Item> load() {
+
+        Map<Long, SendQueue.Item> items = new LinkedHashMap<>();
+        mAcknowledgements = 0;
+
+        if (!mFile.exists()) {
+            return items;
+        }
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mFile), CHARSET))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Record record;
+                try {
+                    record = mGson.fromJson(line, Record.class);
+                } catch (JsonSyntaxException e) {
+                    // Last line can be truncated if the process has been killed while writing
+                    android.util.Log.e(Application.LOG_TAG, "SendQueueJournal: invalid record " + line);
+                    continue;
+                }
+                if (record == null) continue;
+                if (record.item != null) {
+                    items.put(record.item.id, record.item);
+                } else if (record.checkpoint != null) {
+                    SendQueue.Item item = items.get(record.checkpoint);
+                    if (item != null) item.uploadedBytes = record.offset;
+                } else {
+                    items.remove(record.ack);
+                    mAcknowledgements++;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return items;
+    }
+
+    synchronized void append(SendQueue.Item item) {
+        Record record = new Record();
+        record.item = item;
+        write(record);
+    }
+
+    /**
+     * Store the number of bytes of an item already uploaded, so the upload can be resumed
+     */
+    synchronized void checkpoint(long id, long offset) {
+        Record record = new Record();
+        record.checkpoint = id;
+        record.offset = offset;
+        write(record);
+    }
+
+    synchronized void acknowledge(long id) {
+        Record record = new Record();
+        record.ack = id;
+        write(record);
+
+        if (++mAcknowledgements >= COMPACTION_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the journal with pending items only
+     */
+    synchronized void compact() {
+
+        close();
+
+        Collection<SendQueue.Item> pendingItems = mPendingItems.get();
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmpFile), CHARSET))) {
+            for (SendQueue.Item item : pendingItems) {
+                Record record = new Record();
+                record.item = item;
+                writer.write(mGson.toJson(record));
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        if (!tmpFile.renameTo(mFile)) {
+            android.util.Log.e(Application.LOG_TAG, "SendQueueJournal: cannot replace journal");
+            return;
+        }
+        mAcknowledgements = 0;
+    }
+
+    synchronized void close() {
+        if (mWriter == null) return;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mWriter = null;
+    }
+
+    private void write(Record record) {
+        try {
+            if (mWriter == null) {
+                mWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(mFile, true), CHARSET));
+            }
+            mWriter.write(mGson.toJson(record));
+            mWriter.write('\n');
+            mWriter.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Record {
+        SendQueue.Item item;
+        Long checkpoint;
+        long offset;
+        Long ack;
+    }
+}
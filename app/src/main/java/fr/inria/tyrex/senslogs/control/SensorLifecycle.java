@@ -0,0 +1,281 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fr.inria.tyrex.senslogs.Application;
+import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.model.log.Log;
+import fr.inria.tyrex.senslogs.model.sensors.Sensor;
+
+/**
+ * Start and stop sensors of a record in parallel on a bounded pool.
+ * Each start is timed and bounded by a timeout, the time between the start request and the first
+ * sample of each sensor is measured, and a barrier tells when all sensors have been started.
+ * Operations on the same sensor are run in the order they have been requested.
+ */
+class SensorLifecycle {
+
+    private final static String INI_SECTION_NAME = "SensorsStart";
+
+    private final Context mContext;
+    private final long mStartTimeoutMs;
+    private final long mStopTimeoutMs;
+
+    private final ExecutorService mExecutor;
+    private final ScheduledExecutorService mTimeoutScheduler;
+
+    private final Map<Sensor, Future<?>> mLastOperations = new HashMap<>();
+    // Read for each sample, without lock
+    private final Map<Sensor, Stats> mStats = new ConcurrentHashMap<>();
+    private volatile CountDownLatch mReady = new CountDownLatch(0);
+    private long mReadyTimeNanos;
+
+    // Measures of the first start of a sensor in a record
+    private static class Stats {
+        volatile long requestNanos;
+        volatile long startDurationNanos = -1;
+        volatile long firstSampleNanos = -1;
+        volatile boolean timedOut;
+    }
+
+    SensorLifecycle(Context context) {
+        mContext = context;
+        mStartTimeoutMs = context.getResources().getInteger(R.integer.sensor_start_timeout_ms);
+        mStopTimeoutMs = context.getResources().getInteger(R.integer.sensor_stop_timeout_ms);
+        mExecutor = Executors.newFixedThreadPool(
+                context.getResources().getInteger(R.integer.sensor_lifecycle_threads));
+        mTimeoutScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Forget measurements of the previous record
+     */
+    synchronized void reset() {
+        mStats.clear();
+        mReadyTimeNanos = 0;
+    }
+
+    /**
+     * Start sensors, this method does not wait for them.
+     * Sensors which must run on UI thread are started on the calling thread.
+     */
+    synchronized void start(Map<Sensor, Sensor.Settings> sensorsAndSettings, Log.RecordTimes recordTimes) {
+
+        final CountDownLatch ready = new CountDownLatch(sensorsAndSettings.size());
+        mReady = ready;
+
+        for (final Map.Entry<Sensor, Sensor.Settings> sensorAndSetting : sensorsAndSettings.entrySet()) {
+            final Sensor sensor = sensorAndSetting.getKey();
+            final Sensor.Settings settings = sensorAndSetting.getValue();
+
+            final Stats stats = getStats(sensor);
+            final boolean firstStart = stats.requestNanos == 0;
+            if (firstStart) {
+                stats.requestNanos = SystemClock.elapsedRealtimeNanos();
+            }
+
+            // A sensor is released once, by its start or by its timeout
+            final AtomicBoolean released = new AtomicBoolean();
+            final Runnable release = () -> {
+                if (released.compareAndSet(false, true)) countDown(ready);
+            };
+
+            Runnable start = () -> {
+                long startNanos = SystemClock.elapsedRealtimeNanos();
+                try {
+                    sensor.start(mContext, settings, recordTimes);
+                } finally {
+                    if (firstStart) {
+                        stats.startDurationNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+                    }
+                    release.run();
+                }
+            };
+
+            // Some sensors take a long time to start but have to be run on UI thread
+            if (sensor.mustRunOnUiThread()) {
+                start.run();
+                continue;
+            }
+
+            final Future<?> future = submit(sensor, start);
+            mTimeoutScheduler.schedule(() -> {
+                if (future.isDone()) return;
+                if (firstStart) {
+                    stats.timedOut = true;
+                }
+                android.util.Log.d(Application.LOG_TAG, "SensorLifecycle: start of " +
+                        sensor.getName() + " timed out");
+                // The barrier does not wait for a sensor which does not answer
+                release.run();
+            }, mStartTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop sensors, this method does not wait for them.
+     * The listener of a sensor is removed once it is stopped, so the values it flushes when it
+     * stops are still received.
+     */
+    synchronized void stop(Iterable<Sensor> sensors) {
+        for (final Sensor sensor : sensors) {
+            // A listener set by a new start in the meantime is kept
+            final Sensor.Listener listener = sensor.getListener();
+            Runnable stop = () -> {
+                try {
+                    sensor.stop(mContext);
+                } finally {
+                    sensor.removeListener(listener);
+                }
+            };
+            if (sensor.mustRunOnUiThread()) {
+                stop.run();
+            } else {
+                submit(sensor, stop);
+            }
+        }
+    }
+
+    /**
+     * Wait for the last operations requested on sensors, bounded by a timeout for all of them.
+     * Listeners of sensors which are not stopped in time are removed, so nothing is received
+     * after this call.
+     *
+     * @return false if a sensor has not been stopped in time
+     */
+    boolean awaitStopped(Iterable<Sensor> sensors) {
+        long deadline = SystemClock.elapsedRealtime() + mStopTimeoutMs;
+        boolean stopped = true;
+        for (Sensor sensor : sensors) {
+            Future<?> future;
+            synchronized (this) {
+                future = mLastOperations.get(sensor);
+            }
+            if (future == null) continue;
+            try {
+                future.get(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                android.util.Log.d(Application.LOG_TAG, "SensorLifecycle: stop of " +
+                        sensor.getName() + " timed out");
+                sensor.setListener(null);
+                stopped = false;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        return stopped;
+    }
+
+    /**
+     * Called for each sample, only the first one of each sensor is kept
+     */
+    void onSample(Sensor sensor) {
+        Stats stats = mStats.get(sensor);
+        if (stats == null || stats.firstSampleNanos >= 0) return;
+        stats.firstSampleNanos = SystemClock.elapsedRealtimeNanos() - stats.requestNanos;
+    }
+
+    /**
+     * Barrier released when all sensors of the last start request have been started, or their
+     * start has timed out
+     *
+     * @return false if sensors are not ready after timeoutMs
+     */
+    boolean awaitReady(long timeoutMs) throws InterruptedException {
+        return mReady.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isReady() {
+        return mReady.getCount() == 0;
+    }
+
+    /**
+     * Start latencies of the record in seconds, sensors without sample have no first sample time
+     */
+    synchronized List<Log.IniRecord> getIniRecords(Log.RecordTimes recordTimes) {
+        List<Log.IniRecord> records = new ArrayList<>();
+        for (Map.Entry<Sensor, Stats> entry : mStats.entrySet()) {
+            String name = entry.getKey().getName();
+            Stats stats = entry.getValue();
+            if (stats.startDurationNanos >= 0) {
+                records.add(new Log.IniRecord(INI_SECTION_NAME, name + ".StartDuration",
+                        String.format(Locale.US, "%.3f", stats.startDurationNanos / 1e9d)));
+            }
+            if (stats.timedOut) {
+                records.add(new Log.IniRecord(INI_SECTION_NAME, name + ".TimedOut", true));
+            }
+            if (stats.firstSampleNanos >= 0) {
+                records.add(new Log.IniRecord(INI_SECTION_NAME, name + ".TimeToFirstSample",
+                        String.format(Locale.US, "%.3f", stats.firstSampleNanos / 1e9d)));
+            }
+        }
+        if (mReadyTimeNanos > 0) {
+            records.add(new Log.IniRecord(INI_SECTION_NAME, "ReadyTime",
+                    String.format(Locale.US, "%.3f",
+                            recordTimes.sinceStartFromMonotonic(mReadyTimeNanos) / 1e9d)));
+        }
+        return records;
+    }
+
+    /**
+     * Run an operation on a sensor after the previous one on the same sensor
+     */
+    private Future<?> submit(final Sensor sensor, final Runnable operation) {
+        final Future<?> previous = mLastOperations.get(sensor);
+        Future<?> future = mExecutor.submit(() -> {
+            if (previous != null) {
+                try {
+                    previous.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+            operation.run();
+        });
+        mLastOperations.put(sensor, future);
+        return future;
+    }
+
+    private Stats getStats(Sensor sensor) {
+        Stats stats = mStats.get(sensor);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(sensor, stats);
+        }
+        return stats;
+    }
+
+    private void countDown(CountDownLatch ready) {
+        synchronized (this) {
+            if (ready.getCount() == 0) return;
+            ready.countDown();
+            // Only the first start of a record is used as ready time
+            if (ready.getCount() == 0 && mReadyTimeNanos == 0) {
+                mReadyTimeNanos = System.nanoTime();
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.util.List;
 
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 import fr.inria.tyrex.senslogs.model.sensors.AndroidSensor;
+import fr.inria.tyrex.senslogs.model.sensors.BatterySensor;
 import fr.inria.tyrex.senslogs.model.sensors.BluetoothSensor;
 import fr.inria.tyrex.senslogs.model.sensors.CameraRecorder;
 import fr.inria.tyrex.senslogs.model.sensors.LocationGpsSensor;
@@ -73,6 +74,9 @@ public class SensorsManager {
         if (WifiSensor.getInstance().exists(context)) {
             mAvailableSensorsList.add(WifiSensor.getInstance());
         }
+        if (BatterySensor.getInstance().exists(context)) {
+            mAvailableSensorsList.add(BatterySensor.getInstance());
+        }
         if (NmeaSensor.getInstance().exists(context)) {
             mAvailableSensorsList.add(NmeaSensor.getInstance());
         }
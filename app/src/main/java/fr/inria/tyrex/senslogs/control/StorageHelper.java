@@ -1,7 +1,10 @@
 package fr.inria.tyrex.senslogs.control;
 
+import android.content.Context;
 import android.os.Environment;
 
+import java.io.File;
+
 public class StorageHelper {
 
     private static boolean externalStorageReadable, externalStorageWritable;
@@ -21,6 +24,39 @@ public class StorageHelper {
         return externalStorageReadable && externalStorageWritable;
     }
 
+    /**
+     * Application specific folder on external storage, no permission is needed to write there.
+     *
+     * @param preferRemovable use the removable storage (SD card) when the device has one
+     * @return the folder or null if external storage is not available
+     */
+    public static File getExternalArchiveDirectory(Context context, boolean preferRemovable) {
+
+        if (!isExternalStorageReadableAndWritable()) {
+            return null;
+        }
+
+        File outputDir = null;
+
+        if (preferRemovable) {
+            File[] fs = context.getExternalFilesDirs(null);
+            // at index 0 you have the internal storage and at index 1 the real external...
+            if (fs != null && fs.length >= 2) {
+                outputDir = fs[1];
+            }
+        }
+
+        if (outputDir == null) {
+            outputDir = context.getExternalFilesDir(null);
+        }
+
+        if (outputDir == null || (!outputDir.exists() && !outputDir.mkdirs())) {
+            return null;
+        }
+
+        return outputDir;
+    }
+
     private static void checkStorage() {
         String state = Environment.getExternalStorageState();
         if (state.equals(Environment.MEDIA_MOUNTED)) {
@@ -0,0 +1,166 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.core.net.ConnectivityManagerCompat;
+
+import fr.inria.tyrex.senslogs.Application;
+
+/**
+ * Network and power state used by the {@link SendQueue} to decide when items can be sent.
+ * State is updated by system callbacks, so the queue does not have to poll it.
+ */
+class UploadConditions {
+
+    interface Listener {
+        void onConditionsChanged();
+    }
+
+    private final Context mContext;
+    private final ConnectivityManager mConnectivityManager;
+    private final BatteryMonitor mBatteryMonitor;
+    private final Listener mListener;
+
+    private volatile boolean mConnected;
+    private volatile boolean mMetered;
+    private volatile boolean mCharging;
+
+    private boolean mStarted;
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+    // Default network reported by the callback
+    private volatile Network mNetwork;
+
+    UploadConditions(Context context, Listener listener) {
+        mContext = context;
+        mListener = listener;
+        mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mBatteryMonitor = BatteryMonitor.getInstance(context);
+    }
+
+    synchronized void start() {
+        if (mStarted) return;
+        mStarted = true;
+
+        updateNetworkState();
+
+        mBatteryMonitor.addListener(mBatteryListener);
+        mBatteryMonitor.acquire();
+        BatteryMonitor.Snapshot battery = mBatteryMonitor.getSnapshot();
+        mCharging = battery != null && battery.charging;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mNetworkCallback = createNetworkCallback();
+            mConnectivityManager.registerDefaultNetworkCallback(mNetworkCallback);
+        } else {
+            mContext.registerReceiver(mConnectivityReceiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null,
+                    RecordingLoopers.getRadioHandler());
+        }
+    }
+
+    synchronized void stop() {
+        if (!mStarted) return;
+        mStarted = false;
+        mNetwork = null;
+
+        mBatteryMonitor.removeListener(mBatteryListener);
+        mBatteryMonitor.release();
+        if (mNetworkCallback != null) {
+            mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            mNetworkCallback = null;
+        } else {
+            mContext.unregisterReceiver(mConnectivityReceiver);
+        }
+    }
+
+    boolean isConnected() {
+        return mConnected;
+    }
+
+    boolean isMetered() {
+        return mMetered;
+    }
+
+    boolean isCharging() {
+        return mCharging;
+    }
+
+    private void updateNetworkState() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            Network network = mConnectivityManager.getActiveNetwork();
+            updateNetworkState(network == null ? null :
+                    mConnectivityManager.getNetworkCapabilities(network));
+            return;
+        }
+
+        // NetworkInfo is only used before the default network callback exists
+        NetworkInfo activeNetworkInfo = mConnectivityManager.getActiveNetworkInfo();
+        mConnected = activeNetworkInfo != null && activeNetworkInfo.isConnected();
+        mMetered = ConnectivityManagerCompat.isActiveNetworkMetered(mConnectivityManager);
+    }
+
+    /**
+     * A network is usable once it has been validated, a captive portal or a network without
+     * internet access is not
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private void updateNetworkState(NetworkCapabilities capabilities) {
+        mConnected = capabilities != null &&
+                capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) &&
+                capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+        mMetered = capabilities == null ||
+                !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+    }
+
+    private void notifyChanged() {
+        android.util.Log.d(Application.LOG_TAG, "UploadConditions: connected=" + mConnected +
+                " metered=" + mMetered + " charging=" + mCharging);
+        mListener.onConditionsChanged();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private ConnectivityManager.NetworkCallback createNetworkCallback() {
+        return new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(@NonNull Network network,
+                                              @NonNull NetworkCapabilities capabilities) {
+                mNetwork = network;
+                updateNetworkState(capabilities);
+                notifyChanged();
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                // The previous default network may be lost after the new one is reported
+                if (!network.equals(mNetwork)) return;
+                mNetwork = null;
+                updateNetworkState(null);
+                notifyChanged();
+            }
+        };
+    }
+
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateNetworkState();
+            notifyChanged();
+        }
+    };
+
+    private final BatteryMonitor.Listener mBatteryListener = snapshot -> {
+        if (snapshot.charging == mCharging) return;
+        mCharging = snapshot.charging;
+        notifyChanged();
+    };
+}
@@ -1,5 +1,7 @@
 package fr.inria.tyrex.senslogs.control;
 
+import android.content.ContentResolver;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
 
@@ -8,6 +10,9 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -26,10 +31,32 @@ public class ZipCreationTask extends AsyncTask<ZipCreationTask.Params,
         public Collection<File> inputFiles;
         public File outputFile;
 
+        // When set, the zip is streamed to this document instead of outputFile
+        public Uri outputUri;
+        public ContentResolver contentResolver;
+
         public Params(File outputFile, Collection<File> inputFiles) {
             this.inputFiles = inputFiles;
             this.outputFile = outputFile;
         }
+
+        public Params(File outputFile, Uri outputUri, ContentResolver contentResolver,
+                      Collection<File> inputFiles) {
+            this(outputFile, inputFiles);
+            this.outputUri = outputUri;
+            this.contentResolver = contentResolver;
+        }
+
+        private OutputStream openOutputStream() throws IOException {
+            if (outputUri == null) {
+                return new FileOutputStream(outputFile);
+            }
+            OutputStream outputStream = contentResolver.openOutputStream(outputUri);
+            if (outputStream == null) {
+                throw new IOException("Cannot open " + outputUri);
+            }
+            return outputStream;
+        }
     }
 
     public static class Progress {
@@ -42,6 +69,17 @@ public class ZipCreationTask extends AsyncTask<ZipCreationTask.Params,
         }
     }
 
+    /**
+     * Create the zip on the calling thread, listeners are not notified.
+     * Used by callers which already run in background.
+     *
+     * @return the size of the archive, -1 if it cannot be created
+     */
+    public long createSynchronously(Params params) {
+        mSynchronous = true;
+        return doInBackground(params) != null && mSucceeded ? mOutputSize : -1;
+    }
+
     @Override
     protected File doInBackground(Params... params) {
 
@@ -52,8 +90,12 @@ public class ZipCreationTask extends AsyncTask<ZipCreationTask.Params,
         File outputFile = params[0].outputFile;
         Collection<File> inputFiles = params[0].inputFiles;
 
-        if (inputFiles.size()==0)
+        if (inputFiles.size()==0) {
+            mSucceeded = true;
             return outputFile;
+        }
+
+        mOutputSize = 0;
 
         long totalFilesSize = 0l;
         for (File file : inputFiles) {
@@ -63,7 +105,7 @@ public class ZipCreationTask extends AsyncTask<ZipCreationTask.Params,
         long currentFilesRead = 0l;
         try {
             BufferedInputStream origin;
-            FileOutputStream dest = new FileOutputStream(outputFile);
+            OutputStream dest = new CountingOutputStream(params[0].openOutputStream());
 
             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
 
@@ -78,12 +120,14 @@ public class ZipCreationTask extends AsyncTask<ZipCreationTask.Params,
                 while ((count = origin.read(data, 0, BUFFER)) != -1) {
                     out.write(data, 0, count);
                     currentFilesRead += count;
-                    publishProgress(new Progress(file, (float) currentFilesRead / totalFilesSize));
+                    if (!mSynchronous)
+                        publishProgress(new Progress(file, (float) currentFilesRead / totalFilesSize));
                 }
                 origin.close();
             }
 
             out.close();
+            mSucceeded = true;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -111,7 +155,32 @@ public class ZipCreationTask extends AsyncTask<ZipCreationTask.Params,
         super.onPostExecute(file);
 
         for (final Map.Entry<ZipCreationListener, Handler> listener : mListeners.entrySet()) {
-            listener.getValue().post(() -> listener.getKey().onTaskFinished(file, file.length()));
+            listener.getValue().post(() -> listener.getKey().onTaskFinished(file, mOutputSize));
+        }
+    }
+
+
+    // Size of the archive, also known when it has been streamed to a document
+    private volatile long mOutputSize;
+    private boolean mSynchronous;
+    private boolean mSucceeded;
+
+    private class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mOutputSize++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mOutputSize += len;
         }
     }
 
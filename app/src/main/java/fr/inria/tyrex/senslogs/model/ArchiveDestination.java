@@ -0,0 +1,38 @@
+package fr.inria.tyrex.senslogs.model;
+
+import java.io.Serializable;
+
+/**
+ * Location where final zip archives are written by
+ * {@link fr.inria.tyrex.senslogs.control.RecorderWriter}.
+ * Archives are streamed directly to this location, there is no copy from internal storage.
+ */
+public class ArchiveDestination implements Serializable {
+
+    public enum Type {
+        // Application private folder (default)
+        INTERNAL,
+        // Application specific folder on external storage
+        EXTERNAL,
+        // Folder selected by the user with the Storage Access Framework
+        DOCUMENT_TREE
+    }
+
+    public static ArchiveDestination DEFAULT = new ArchiveDestination(Type.INTERNAL, null);
+
+    public Type type;
+    public String treeUri;
+
+    public ArchiveDestination(Type type, String treeUri) {
+        this.type = type;
+        this.treeUri = treeUri;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveDestination{" +
+                "type=" + type +
+                ", treeUri='" + treeUri + '\'' +
+                '}';
+    }
+}
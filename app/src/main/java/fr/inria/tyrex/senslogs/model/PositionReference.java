@@ -9,13 +9,14 @@ import java.io.Serializable;
  */
 public class PositionReference implements Serializable {
 
-    public double elapsedTime;
+    // Nanoseconds since the start of the record
+    public long elapsedTime;
     public double latitude;
     public double longitude;
     public Float level;
 
 
-    public PositionReference(double elapsedTime, double latitude, double longitude, Float level) {
+    public PositionReference(long elapsedTime, double latitude, double longitude, Float level) {
         this.elapsedTime = elapsedTime;
         this.longitude = longitude;
         this.latitude = latitude;
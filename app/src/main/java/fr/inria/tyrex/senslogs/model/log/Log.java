@@ -28,10 +28,15 @@ import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 public class Log implements Serializable {
 
 
+    // Stable identifier of the log, the zip path or document can change with the destination
+    private String mId;
     private String mName;
 
     private File mTemporaryFolder;
+    // When the zip is written to a document, only the name of this file is meaningful
     private File mZipFile;
+    // Document where the zip has been written when it is not stored in a file (see ArchiveDestination)
+    private String mZipUri;
 
     private long mCompressedSize;
     private long mUncompressedSize;
@@ -48,6 +53,9 @@ public class Log implements Serializable {
 
     private transient List<Listener> mListeners;
 
+    // Records which do not come from a sensor, written in the ini file of the archive
+    private transient List<IniRecord> mExtraIniRecords;
+
     public Log() {
         this(new HashSet<Sensor>());
     }
@@ -63,7 +71,8 @@ public class Log implements Serializable {
     public void init(Context context) throws FileNotFoundException {
 
         // Create new folder for records
-        mTemporaryFolder = new File(context.getFilesDir(), String.valueOf(UUID.randomUUID()));
+        mId = String.valueOf(UUID.randomUUID());
+        mTemporaryFolder = new File(context.getFilesDir(), mId);
         if (!mTemporaryFolder.mkdir()) {
             throw new FileNotFoundException();
         }
@@ -73,6 +82,10 @@ public class Log implements Serializable {
     }
 
 
+    public void setId(String id) {
+        mId = id;
+    }
+
     public void setName(String newName) {
         mName = newName;
         notifyDatasetChanged();
@@ -82,6 +95,10 @@ public class Log implements Serializable {
         mZipFile = zipFile;
     }
 
+    public void setZipUri(String zipUri) {
+        mZipUri = zipUri;
+    }
+
     public void setUncompressedSize(long uncompressedSize) {
         mUncompressedSize = uncompressedSize;
     }
@@ -109,6 +126,13 @@ public class Log implements Serializable {
         }
     }
 
+    public void addExtraIniRecords(List<IniRecord> records) {
+        if (mExtraIniRecords == null) {
+            mExtraIniRecords = new ArrayList<>();
+        }
+        mExtraIniRecords.addAll(records);
+    }
+
     public void setUser(String user) {
         mUser = user;
     }
@@ -122,6 +146,10 @@ public class Log implements Serializable {
     }
 
 
+    public String getId() {
+        return mId;
+    }
+
     public String getName() {
         return mName;
     }
@@ -134,6 +162,10 @@ public class Log implements Serializable {
         return mZipFile;
     }
 
+    public String getZipUri() {
+        return mZipUri;
+    }
+
     public long getCompressedSize() {
         return mCompressedSize;
     }
@@ -180,20 +212,22 @@ public class Log implements Serializable {
 
         Log log = (Log) o;
 
-        return mZipFile.equals(log.mZipFile);
+        return mId.equals(log.mId);
     }
 
     @Override
     public int hashCode() {
-        return mZipFile.hashCode();
+        return mId.hashCode();
     }
 
 
     @Override
     public String toString() {
         return "Log{" +
-                "mName='" + mName + '\'' +
+                "mId='" + mId + '\'' +
+                ", mName='" + mName + '\'' +
                 ", mZipFile=" + mZipFile +
+                ", mZipUri=" + mZipUri +
                 ", mCompressedSize=" + mCompressedSize +
                 ", mUncompressedSize=" + mUncompressedSize +
                 ", mRecordTimes=" + mRecordTimes +
@@ -232,6 +266,9 @@ public class Log implements Serializable {
         ini.put("Time", "EndTime", String.format(Locale.US, "%.3f", mRecordTimes.endTime));
         ini.put("Time", "BootTime", String.format(Locale.US, "%.3f", mRecordTimes.bootTime));
         ini.put("Time", "MonotonicAtStart", String.format(Locale.US, "%.3f", mRecordTimes.monotonicAtStart));
+        ini.put("Time", "StartTimeNanos", mRecordTimes.startTimeNanos);
+        ini.put("Time", "ElapsedRealtimeNanosAtStart", mRecordTimes.elapsedRealtimeNanosAtStart);
+        ini.put("Time", "MonotonicNanosAtStart", mRecordTimes.monotonicNanosAtStart);
 
         String sensorsList = "";
         for (WritableObject writableObject : writableObjects) {
@@ -254,6 +291,11 @@ public class Log implements Serializable {
                 ini.put(record.sectionName, record.optionName, record.value);
             }
         }
+        if (mExtraIniRecords != null) {
+            for (IniRecord record : mExtraIniRecords) {
+                ini.put(record.sectionName, record.optionName, record.value);
+            }
+        }
 
         return ini;
     }
@@ -264,10 +306,47 @@ public class Log implements Serializable {
         public double bootTime; // in seconds from unix time
         public double monotonicAtStart; // in seconds
 
+        // Same times in nanoseconds, elapsed times of the record are based on the elapsed realtime
+        public long startTimeNanos; // from unix time
+        public long elapsedRealtimeNanosAtStart;
+        public long monotonicNanosAtStart;
+
         public void init() {
-            startTime = System.currentTimeMillis() / 1e3d;
-            monotonicAtStart = System.nanoTime() / 1e9d;
-            bootTime = (System.currentTimeMillis() - SystemClock.elapsedRealtime()) / 1e3d;
+            elapsedRealtimeNanosAtStart = SystemClock.elapsedRealtimeNanos();
+            monotonicNanosAtStart = System.nanoTime();
+            startTimeNanos = System.currentTimeMillis() * 1000000L;
+
+            startTime = startTimeNanos / 1e9d;
+            monotonicAtStart = monotonicNanosAtStart / 1e9d;
+            bootTime = (startTimeNanos - elapsedRealtimeNanosAtStart) / 1e9d;
+        }
+
+        /**
+         * Nanoseconds since the start of the record
+         */
+        public long sinceStart() {
+            return SystemClock.elapsedRealtimeNanos() - elapsedRealtimeNanosAtStart;
+        }
+
+        /**
+         * Nanoseconds between the start of the record and an elapsed realtime in nanoseconds
+         */
+        public long sinceStart(long elapsedRealtimeNanos) {
+            return elapsedRealtimeNanos - elapsedRealtimeNanosAtStart;
+        }
+
+        /**
+         * Nanoseconds between the start of the record and a unix time in nanoseconds
+         */
+        public long sinceStartFromUnix(long unixTimeNanos) {
+            return unixTimeNanos - startTimeNanos;
+        }
+
+        /**
+         * Nanoseconds between the start of the record and a {@link System#nanoTime()} value
+         */
+        public long sinceStartFromMonotonic(long monotonicNanos) {
+            return monotonicNanos - monotonicNanosAtStart;
         }
     }
 
@@ -1,12 +1,17 @@
 package fr.inria.tyrex.senslogs.model.preferences;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -17,69 +22,178 @@ import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 
 /**
  * Interface to store data logs into a database (only the properties)
+ * Each log is a row indexed by its identifier, so a mutation only touches one log.
  */
 public class LogsDataSource {
 
+    // Previous storage, migrated on first run
     private final static String PREF_FILE = "Logs";
     private final static String KEY_LOGS_LIST = "logs-list";
 
-    private SharedPreferences mPreferences;
+    private final static String DATABASE_NAME = "logs.db";
+    private final static int DATABASE_VERSION = 1;
+
+    private final static String TABLE_LOGS = "logs";
+    private final static String COLUMN_ID = "id";
+    private final static String COLUMN_START_TIME = "start_time";
+    private final static String COLUMN_JSON = "json";
+
+    private final Context mContext;
+    private final DatabaseHelper mDatabaseHelper;
     private final Gson mGson;
 
 
     public LogsDataSource(Context context,
                           SensorsManager sensorsManager) {
 
-        mPreferences = context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+        mContext = context;
+        mDatabaseHelper = new DatabaseHelper(context);
         mGson = new GsonBuilder().
                 registerTypeAdapter(Sensor.class,
                         new Sensor.Serializer(sensorsManager.getAvailableSensors())).
                 create();
+
+        migrateFromPreferences();
     }
 
 
     public void addLog(Log log) {
-        List<Log> logs = getLogs();
-        logs.add(log);
-        saveLogs(logs);
+        mDatabaseHelper.getWritableDatabase().insertWithOnConflict(TABLE_LOGS, null,
+                toContentValues(log), SQLiteDatabase.CONFLICT_REPLACE);
     }
 
     public void updateLog(Log log) {
-        List<Log> logs = getLogs();
-        logs.remove(log);
-        logs.add(log);
-        saveLogs(logs);
+        addLog(log);
     }
 
 
     public void deleteLog(Log log) {
-        List<Log> logs = getLogs();
-        logs.remove(log);
-        saveLogs(logs);
+        mDatabaseHelper.getWritableDatabase().delete(TABLE_LOGS, COLUMN_ID + " = ?",
+                new String[]{log.getId()});
     }
 
-    private void saveLogs(List<Log> logs) {
-        Set<String> input = new HashSet<>();
-        for (Log log : logs) {
-            input.add(mGson.toJson(log));
+    /**
+     * Add or update several logs in a single transaction
+     */
+    public void updateLogs(Collection<Log> logs) {
+        SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (Log log : logs) {
+                database.insertWithOnConflict(TABLE_LOGS, null, toContentValues(log),
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Delete several logs in a single transaction
+     */
+    public void deleteLogs(Collection<Log> logs) {
+        SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (Log log : logs) {
+                database.delete(TABLE_LOGS, COLUMN_ID + " = ?", new String[]{log.getId()});
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
-        mPreferences.edit().putStringSet(KEY_LOGS_LIST, input).apply();
     }
 
     public List<Log> getLogs() {
+        return getLogs(0, -1);
+    }
+
+    /**
+     * Logs sorted from the most recent to the oldest
+     *
+     * @param offset index of the first log
+     * @param limit  maximum number of logs, -1 for all logs
+     */
+    public List<Log> getLogs(int offset, int limit) {
         List<Log> logs = new ArrayList<>();
 
-        Set<String> preferencesStrings = new HashSet<>(
-                mPreferences.getStringSet(KEY_LOGS_LIST, new HashSet<String>()));
+        String limitClause = limit < 0 ? null : offset + "," + limit;
 
-        for (String preferenceString : preferencesStrings) {
-            logs.add(mGson.fromJson(preferenceString, Log.class));
+        try (Cursor cursor = mDatabaseHelper.getReadableDatabase().query(TABLE_LOGS,
+                new String[]{COLUMN_JSON}, null, null, null, null,
+                COLUMN_START_TIME + " DESC", limitClause)) {
+            while (cursor.moveToNext()) {
+                Log log = mGson.fromJson(cursor.getString(0), Log.class);
+                if (log != null) logs.add(log);
+            }
         }
 
         return logs;
     }
 
+    public int getLogsCount() {
+        try (Cursor cursor = mDatabaseHelper.getReadableDatabase().rawQuery(
+                "SELECT COUNT(*) FROM " + TABLE_LOGS, null)) {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
+    }
+
     public void removeAll() {
+        mDatabaseHelper.getWritableDatabase().delete(TABLE_LOGS, null, null);
+    }
+
+
+    private ContentValues toContentValues(Log log) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ID, log.getId());
+        values.put(COLUMN_START_TIME, log.getRecordTimes().startTime);
+        values.put(COLUMN_JSON, mGson.toJson(log));
+        return values;
+    }
+
+    private void migrateFromPreferences() {
 
+        SharedPreferences preferences = mContext.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+        if (!preferences.contains(KEY_LOGS_LIST)) {
+            return;
+        }
+
+        Set<String> preferencesStrings = new HashSet<>(
+                preferences.getStringSet(KEY_LOGS_LIST, new HashSet<String>()));
+
+        List<Log> logs = new ArrayList<>();
+        for (String preferenceString : preferencesStrings) {
+            Log log = mGson.fromJson(preferenceString, Log.class);
+            if (log == null || log.getZipFile() == null) continue;
+            // Logs stored before identifiers are identified by their zip, which is unique
+            log.setId(log.getZipFile().getAbsolutePath());
+            logs.add(log);
+        }
+        updateLogs(logs);
+
+        preferences.edit().remove(KEY_LOGS_LIST).commit();
+    }
+
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_LOGS + " (" +
+                    COLUMN_ID + " TEXT PRIMARY KEY, " +
+                    COLUMN_START_TIME + " REAL, " +
+                    COLUMN_JSON + " TEXT NOT NULL)");
+            db.execSQL("CREATE INDEX " + TABLE_LOGS + "_" + COLUMN_START_TIME + " ON " +
+                    TABLE_LOGS + " (" + COLUMN_START_TIME + ")");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
     }
 }
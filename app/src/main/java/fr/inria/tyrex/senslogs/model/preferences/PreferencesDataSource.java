@@ -23,7 +23,9 @@ import java.util.Map;
 import java.util.Set;
 
 import fr.inria.tyrex.senslogs.control.SensorsManager;
+import fr.inria.tyrex.senslogs.model.ArchiveDestination;
 import fr.inria.tyrex.senslogs.model.sensors.AndroidSensor;
+import fr.inria.tyrex.senslogs.model.sensors.BluetoothSensor;
 import fr.inria.tyrex.senslogs.model.sensors.CameraRecorder;
 import fr.inria.tyrex.senslogs.model.sensors.LocationSensor;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
@@ -36,6 +38,8 @@ public class PreferencesDataSource {
     private final static String PREF_FILE = "Sensors";
     private final static String KEY_PREF_LIST = "preferences-list";
     private final static String KEY_CATEGORY_LIST = "category-list";
+    private final static String KEY_ARCHIVE_DESTINATION = "archive-destination";
+    private final static String KEY_KEEP_WARM_TIMEOUT = "keep-warm-timeout-ms";
 
     private SharedPreferences mPreferences;
     private SensorsManager mSensorsManager;
@@ -156,9 +160,34 @@ public class PreferencesDataSource {
     }
 
 
+    public ArchiveDestination getArchiveDestination() {
+        String destinationString = mPreferences.getString(KEY_ARCHIVE_DESTINATION, null);
+        if (destinationString == null) {
+            return ArchiveDestination.DEFAULT;
+        }
+        ArchiveDestination destination = mGson.fromJson(destinationString, ArchiveDestination.class);
+        return destination == null || destination.type == null ?
+                ArchiveDestination.DEFAULT : destination;
+    }
+
+    public void setArchiveDestination(ArchiveDestination destination) {
+        mPreferences.edit().putString(KEY_ARCHIVE_DESTINATION, mGson.toJson(destination)).apply();
+    }
+
+    public long getKeepWarmTimeoutMs(long defaultValue) {
+        return mPreferences.getLong(KEY_KEEP_WARM_TIMEOUT, defaultValue);
+    }
+
+    public void setKeepWarmTimeoutMs(long timeoutMs) {
+        mPreferences.edit().putLong(KEY_KEEP_WARM_TIMEOUT, timeoutMs).apply();
+    }
+
+
     public void removeAll() {
         mPreferences.edit().putString(KEY_PREF_LIST, null).apply();
         mPreferences.edit().putString(KEY_CATEGORY_LIST, null).apply();
+        mPreferences.edit().putString(KEY_ARCHIVE_DESTINATION, null).apply();
+        mPreferences.edit().remove(KEY_KEEP_WARM_TIMEOUT).apply();
     }
 
 
@@ -181,6 +210,8 @@ public class PreferencesDataSource {
                     = gson.getDelegateAdapter(this, TypeToken.get(AndroidSensor.Settings.class));
             final TypeAdapter<CameraRecorder.Settings> settingsCameraAdapter
                     = gson.getDelegateAdapter(this, TypeToken.get(CameraRecorder.Settings.class));
+            final TypeAdapter<BluetoothSensor.Settings> settingsBluetoothAdapter
+                    = gson.getDelegateAdapter(this, TypeToken.get(BluetoothSensor.Settings.class));
             final TypeAdapter<Sensor.Settings> settingsAdapter
                     = gson.getDelegateAdapter(this, TypeToken.get(Sensor.Settings.class));
 
@@ -210,6 +241,8 @@ public class PreferencesDataSource {
                             settings = settingsAndroidAdapter.fromJsonTree(settingsObject);
                         } else if (settingsClass.equals(CameraRecorder.Settings.class.getName())) {
                             settings = settingsCameraAdapter.fromJsonTree(settingsObject);
+                        } else if (settingsClass.equals(BluetoothSensor.Settings.class.getName())) {
+                            settings = settingsBluetoothAdapter.fromJsonTree(settingsObject);
                         } else if (settingsClass.equals(Sensor.Settings.class.getName())) {
                             settings = settingsAdapter.fromJsonTree(settingsObject);
                         }
@@ -2,13 +2,30 @@ package fr.inria.tyrex.senslogs.model.sensors;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.hardware.SensorDirectChannel;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MemoryFile;
 import android.os.SystemClock;
 
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.control.RecordingLoopers;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
 import fr.inria.tyrex.senslogs.model.log.Log;
 
@@ -18,10 +35,47 @@ import fr.inria.tyrex.senslogs.model.log.Log;
  */
 public class AndroidSensor extends Sensor implements FieldsWritableObject {
 
+    private final static String INI_OPTION_FIFO_MAX_EVENT_COUNT = "FifoMaxEventCount";
+    private final static String INI_OPTION_FIFO_RESERVED_EVENT_COUNT = "FifoReservedEventCount";
+    private final static String INI_OPTION_MAX_REPORT_LATENCY = "MaxReportLatencyUs";
+    private final static String INI_OPTION_REQUESTED_RATE = "RequestedRate";
+    private final static String INI_OPTION_ACHIEVED_RATE = "AchievedRate";
+
+    private final static String INI_OPTION_DIRECT_CHANNEL = "DirectChannel";
+    private final static String INI_OPTION_DIRECT_LOST_REPORTS = "DirectChannelLostReports";
+
+    // Time given to the hardware FIFO to be flushed before the listener is unregistered
+    private final static long FLUSH_TIMEOUT_MS = 1000;
+
+    // Direct channel ring, about 1 s of reports at the highest rate
+    private final static int DIRECT_RING_CAPACITY = 1024;
+    private final static long DIRECT_POLL_PERIOD_MS = 20;
+
     transient private android.hardware.Sensor mSensor;
-    transient private double mStartTimeMinusBoot;
-    transient private double mStartTime;
-    transient private double mMonotonicAtStart;
+    transient private Log.RecordTimes mRecordTimes;
+    transient private long mMaxReportLatencyUs;
+    transient private volatile CountDownLatch mFlushLatch;
+
+    // Achieved rate measurement, accumulated over the running periods of a record, warm pauses
+    // are not counted. Updated on the sensors looper only, stop() waits for the end of the run.
+    transient private int mRequestedPeriodUs;
+    transient private volatile boolean mMeasuring;
+    transient private long mRunEvents;
+    transient private long mRunFirstTimestamp;
+    transient private long mRunLastTimestamp;
+    transient private long mMeasuredIntervals;
+    transient private long mMeasuredDurationNs;
+
+    // Direct channel capture, reports are read from a shared memory by the sensors looper
+    transient private Object mDirectLock = new Object();
+    transient private SensorDirectChannel mDirectChannel;
+    transient private MemoryFile mDirectMemory;
+    transient private DirectReportParser mDirectParser;
+    transient private byte[] mDirectRing;
+    transient private ByteBuffer mDirectRingBuffer;
+    transient private int mDirectValuesCount;
+    transient private boolean mDirectUsed;
+    transient private long mDirectLostReports;
 
 
     public AndroidSensor(android.hardware.Sensor sensor) {
@@ -161,18 +215,284 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
         }
         Settings sensorSettings = (Settings) settings;
 
+        mMaxReportLatencyUs = sensorSettings.maxReportLatencyUs;
+
+        // A new record starts, measurements of the previous one are dropped
+        if (recordTimes != mRecordTimes) {
+            mMeasuredIntervals = 0;
+            mMeasuredDurationNs = 0;
+            mDirectLostReports = 0;
+        }
+        mRunEvents = 0;
+        mMeasuring = true;
+
+        int samplingPeriodUs = sensorSettings.getSamplingPeriodUs(mSensor);
+        mRequestedPeriodUs = Settings.getPeriodUsFromDelay(samplingPeriodUs);
+
+        mRecordTimes = recordTimes;
+
         SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        sensorManager.registerListener(mSensorEventListener, mSensor, sensorSettings.sensorDelay);
+        mDirectUsed = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
+                sensorSettings.directChannel && isDirectChannelSupported()) {
+            mDirectValuesCount = Math.min(getFields(context.getResources()).length - 2,
+                    DirectReportParser.VALUES_COUNT);
+            mDirectUsed = startDirectChannel(sensorManager, mRequestedPeriodUs);
+        }
 
-        mMonotonicAtStart = recordTimes.monotonicAtStart;
-        mStartTime = recordTimes.startTime;
-        mStartTimeMinusBoot = recordTimes.startTime - recordTimes.bootTime;
+        if (mDirectUsed) {
+            android.util.Log.d(Application.LOG_TAG, "AndroidSensor: direct channel used for " + getName());
+        } else if (mMaxReportLatencyUs > 0) {
+            // Events are stored in the hardware FIFO and delivered by batches
+            sensorManager.registerListener(mSensorEventListener, mSensor,
+                    samplingPeriodUs, (int) Math.min(mMaxReportLatencyUs, Integer.MAX_VALUE),
+                    RecordingLoopers.getSensorsHandler());
+        } else {
+            sensorManager.registerListener(mSensorEventListener, mSensor, samplingPeriodUs,
+                    RecordingLoopers.getSensorsHandler());
+        }
     }
 
     @Override
     public void stop(Context context) {
         SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        sensorManager.unregisterListener(mSensorEventListener);
+        if (mDirectUsed && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Reports left in the ring are given to the listener before it is removed
+            runOnSensorsLooper(this::stopDirectChannel);
+        } else {
+            if (mMaxReportLatencyUs > 0) {
+                flush(sensorManager);
+            }
+            sensorManager.unregisterListener(mSensorEventListener);
+        }
+
+        // Events flushed above are in the looper queue, they are counted before the run ends
+        runOnSensorsLooper(this::endRun);
+    }
+
+    // Run an operation on the sensors looper after the events already queued, and wait for it
+    private void runOnSensorsLooper(final Runnable operation) {
+        Handler handler = RecordingLoopers.getSensorsHandler();
+        if (handler.getLooper() == Looper.myLooper()) {
+            operation.run();
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        handler.post(() -> {
+            try {
+                operation.run();
+            } finally {
+                done.countDown();
+            }
+        });
+        try {
+            if (!done.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                android.util.Log.d(Application.LOG_TAG, "AndroidSensor: sensors looper timeout for " + getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Events still in the looper queue are counted before the run ends
+    @Override
+    public void pauseOutput(Context context) {
+        RecordingLoopers.getSensorsHandler().post(this::endRun);
+    }
+
+    @Override
+    public void resumeOutput(Context context) {
+        RecordingLoopers.getSensorsHandler().post(() -> {
+            mRunEvents = 0;
+            mMeasuring = true;
+        });
+    }
+
+    private void endRun() {
+        mMeasuring = false;
+        if (mRunEvents > 1) {
+            mMeasuredIntervals += mRunEvents - 1;
+            mMeasuredDurationNs += mRunLastTimestamp - mRunFirstTimestamp;
+        }
+        mRunEvents = 0;
+    }
+
+    /**
+     * True if reports of this sensor can be written by the sensor hub in a shared memory
+     */
+    public boolean isDirectChannelSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
+                mSensor.isDirectChannelTypeSupported(SensorDirectChannel.TYPE_MEMORY_FILE) &&
+                mSensor.getHighestDirectReportRateLevel() != SensorDirectChannel.RATE_STOP;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private boolean startDirectChannel(SensorManager sensorManager, int periodUs) {
+        synchronized (mDirectLock) {
+            int size = DIRECT_RING_CAPACITY * DirectReportParser.REPORT_SIZE;
+            try {
+                mDirectMemory = new MemoryFile("senslogs-direct", size);
+                mDirectChannel = sensorManager.createDirectChannel(mDirectMemory);
+            } catch (IOException | UncheckedIOException | IllegalStateException e) {
+                android.util.Log.d(Application.LOG_TAG, "AndroidSensor: direct channel not created: " + e);
+                closeDirectChannel();
+                return false;
+            }
+
+            if (mDirectChannel.configure(mSensor, getDirectRateLevel(periodUs)) <= 0) {
+                closeDirectChannel();
+                return false;
+            }
+
+            mDirectParser = new DirectReportParser(DIRECT_RING_CAPACITY);
+            mDirectRing = new byte[size];
+            mDirectRingBuffer = ByteBuffer.wrap(mDirectRing);
+            RecordingLoopers.getSensorsHandler().postDelayed(mDirectReader, DIRECT_POLL_PERIOD_MS);
+            return true;
+        }
+    }
+
+    // Called on the sensors looper, like the polls of the ring
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private void stopDirectChannel() {
+        RecordingLoopers.getSensorsHandler().removeCallbacks(mDirectReader);
+        synchronized (mDirectLock) {
+            if (mDirectChannel == null) return;
+            mDirectChannel.configure(mSensor, SensorDirectChannel.RATE_STOP);
+            // Reports written since the last poll
+            readDirectReports();
+            mDirectLostReports += mDirectParser.getLostReports();
+            closeDirectChannel();
+        }
+    }
+
+    private void closeDirectChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mDirectChannel != null) {
+            mDirectChannel.close();
+        }
+        mDirectChannel = null;
+        if (mDirectMemory != null) {
+            mDirectMemory.close();
+            mDirectMemory = null;
+        }
+        mDirectParser = null;
+        mDirectRing = null;
+        mDirectRingBuffer = null;
+    }
+
+    /**
+     * Nearest direct report rate level of a sampling period, bounded by the sensor capabilities
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private int getDirectRateLevel(int periodUs) {
+        int level;
+        if (periodUs <= 0 || periodUs < 1e6 / 220) {
+            level = SensorDirectChannel.RATE_VERY_FAST;
+        } else if (periodUs < 1e6 / 55) {
+            level = SensorDirectChannel.RATE_FAST;
+        } else {
+            level = SensorDirectChannel.RATE_NORMAL;
+        }
+        return Math.min(level, mSensor.getHighestDirectReportRateLevel());
+    }
+
+    private void readDirectReports() {
+        try {
+            mDirectMemory.readBytes(mDirectRing, 0, 0, mDirectRing.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        mDirectParser.parse(mDirectRingBuffer, mDirectReportListener);
+    }
+
+    transient private Runnable mDirectReader = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mDirectLock) {
+                if (mDirectMemory == null) return;
+                readDirectReports();
+            }
+            RecordingLoopers.getSensorsHandler().postDelayed(this, DIRECT_POLL_PERIOD_MS);
+        }
+    };
+
+    transient private DirectReportParser.Listener mDirectReportListener =
+            new DirectReportParser.Listener() {
+                @Override
+                public void onReport(int token, int type, long timestamp, float[] values) {
+                    if (mMeasuring) {
+                        if (mRunEvents++ == 0) {
+                            mRunFirstTimestamp = timestamp;
+                        }
+                        mRunLastTimestamp = timestamp;
+                    }
+
+                    if (mListener == null) {
+                        return;
+                    }
+
+                    final Object[] output = new Object[mDirectValuesCount];
+                    for (int i = 0; i < mDirectValuesCount; i++) {
+                        output[i] = values[i];
+                    }
+
+                    // Direct reports are timestamped with the elapsed realtime
+                    mListener.onNewValues(mRecordTimes.sinceStart(), mRecordTimes.sinceStart(timestamp), output);
+                }
+            };
+
+    /**
+     * Events per second received during the record, paused periods (warm or not) excluded, 0 if
+     * not enough events were received
+     */
+    public double getAchievedRate() {
+        if (mMeasuredIntervals == 0 || mMeasuredDurationNs <= 0) return 0;
+        return mMeasuredIntervals / (mMeasuredDurationNs / 1e9d);
+    }
+
+    /**
+     * Ask the hardware FIFO to deliver its events now and wait for them, otherwise events of the
+     * last batch would be lost when the listener is unregistered
+     */
+    private void flush(SensorManager sensorManager) {
+        CountDownLatch latch = new CountDownLatch(1);
+        mFlushLatch = latch;
+        try {
+            if (!sensorManager.flush(mSensorEventListener)) {
+                return;
+            }
+            if (!latch.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                android.util.Log.d(Application.LOG_TAG, "AndroidSensor: flush timeout for " + getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mFlushLatch = null;
+        }
+    }
+
+    @Override
+    public List<Log.IniRecord> getExtraIniRecords(Context context) {
+        List<Log.IniRecord> records = new ArrayList<>();
+        String sectionName = getName();
+        records.add(new Log.IniRecord(sectionName, INI_OPTION_FIFO_MAX_EVENT_COUNT,
+                mSensor.getFifoMaxEventCount()));
+        records.add(new Log.IniRecord(sectionName, INI_OPTION_FIFO_RESERVED_EVENT_COUNT,
+                mSensor.getFifoReservedEventCount()));
+        records.add(new Log.IniRecord(sectionName, INI_OPTION_MAX_REPORT_LATENCY, mMaxReportLatencyUs));
+        if (mRequestedPeriodUs > 0) {
+            records.add(new Log.IniRecord(sectionName, INI_OPTION_REQUESTED_RATE,
+                    String.format(Locale.US, "%.3f", 1e6d / mRequestedPeriodUs)));
+        }
+        records.add(new Log.IniRecord(sectionName, INI_OPTION_ACHIEVED_RATE,
+                String.format(Locale.US, "%.3f", getAchievedRate())));
+        records.add(new Log.IniRecord(sectionName, INI_OPTION_DIRECT_CHANNEL, mDirectUsed));
+        if (mDirectUsed) {
+            records.add(new Log.IniRecord(sectionName, INI_OPTION_DIRECT_LOST_REPORTS, mDirectLostReports));
+        }
+        return records;
     }
 
     @Override
@@ -192,11 +512,69 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
 
     public static class Settings extends Sensor.Settings {
         public int sensorDelay;
+        // 0 if events are delivered as soon as they are available
+        public long maxReportLatencyUs;
+        // Sampling period in microseconds, 0 if sensorDelay is used
+        public int samplingPeriodUs;
+        // Reports are read from a shared memory instead of events, ignored if not supported
+        public boolean directChannel;
 
         public static Settings DEFAULT = new Settings(SensorManager.SENSOR_DELAY_GAME);
 
         public Settings(int sensorDelay) {
+            this(sensorDelay, 0);
+        }
+
+        public Settings(int sensorDelay, long maxReportLatencyUs) {
+            this(sensorDelay, maxReportLatencyUs, 0);
+        }
+
+        public Settings(int sensorDelay, long maxReportLatencyUs, int samplingPeriodUs) {
+            this(sensorDelay, maxReportLatencyUs, samplingPeriodUs, false);
+        }
+
+        public Settings(int sensorDelay, long maxReportLatencyUs, int samplingPeriodUs,
+                        boolean directChannel) {
             this.sensorDelay = sensorDelay;
+            this.maxReportLatencyUs = maxReportLatencyUs;
+            this.samplingPeriodUs = samplingPeriodUs;
+            this.directChannel = directChannel;
+        }
+
+        /**
+         * Value given to the sensor manager, the sampling period bounded by the sensor capabilities
+         * or the delay preset if there is no sampling period
+         */
+        public int getSamplingPeriodUs(android.hardware.Sensor sensor) {
+            if (samplingPeriodUs <= 0) {
+                return sensorDelay;
+            }
+            int period = samplingPeriodUs;
+            if (sensor.getMinDelay() > 0) {
+                period = Math.max(period, sensor.getMinDelay());
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && sensor.getMaxDelay() > 0) {
+                period = Math.min(period, sensor.getMaxDelay());
+            }
+            // Values up to 3 are interpreted as presets by the sensor manager
+            return Math.max(period, SensorManager.SENSOR_DELAY_NORMAL + 1);
+        }
+
+        /**
+         * Nominal period of a delay preset, 0 for the fastest one
+         */
+        public static int getPeriodUsFromDelay(int delay) {
+            switch (delay) {
+                case SensorManager.SENSOR_DELAY_FASTEST:
+                    return 0;
+                case SensorManager.SENSOR_DELAY_GAME:
+                    return 20000;
+                case SensorManager.SENSOR_DELAY_UI:
+                    return 66667;
+                case SensorManager.SENSOR_DELAY_NORMAL:
+                    return 200000;
+            }
+            return delay;
         }
 
         public static int getDelayIntegerFromString(String delay) {
@@ -230,6 +608,9 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
         public String toString() {
             return "AndroidSensor.Settings{" +
                     "sensorDelay=" + sensorDelay +
+                    ", maxReportLatencyUs=" + maxReportLatencyUs +
+                    ", samplingPeriodUs=" + samplingPeriodUs +
+                    ", directChannel=" + directChannel +
                     '}';
         }
     }
@@ -239,10 +620,17 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
     private TimestampFormat timestampFormat;
     private boolean firstTimestampReached = false;
 
-    transient private SensorEventListener mSensorEventListener = new SensorEventListener() {
+    transient private SensorEventListener2 mSensorEventListener = new SensorEventListener2() {
         @Override
         public void onSensorChanged(final SensorEvent event) {
-            double systemTimestamp = System.currentTimeMillis() / 1e3d - mStartTime;
+            long systemTimestamp = mRecordTimes.sinceStart();
+
+            if (mMeasuring) {
+                if (mRunEvents++ == 0) {
+                    mRunFirstTimestamp = event.timestamp;
+                }
+                mRunLastTimestamp = event.timestamp;
+            }
 
             if (mListener == null) {
                 return;
@@ -283,18 +671,18 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
                 return;
             }
 
-            double diffTime;
+            long diffTime;
             switch (timestampFormat) {
                 case UNIX_NANO:
-                    diffTime = event.timestamp / 1e9d - mStartTime;
+                    diffTime = mRecordTimes.sinceStartFromUnix(event.timestamp);
                     break;
 
                 case BOOT_NANO:
-                    diffTime = event.timestamp / 1e9d - mStartTimeMinusBoot;
+                    diffTime = mRecordTimes.sinceStart(event.timestamp);
                     break;
 
                 case MONOTONIC_NANO:
-                    diffTime = event.timestamp / 1e9d - mMonotonicAtStart;
+                    diffTime = mRecordTimes.sinceStartFromMonotonic(event.timestamp);
                     break;
 
                 default:
@@ -307,6 +695,14 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
         @Override
         public void onAccuracyChanged(android.hardware.Sensor sensor, int accuracy) {
         }
+
+        @Override
+        public void onFlushCompleted(android.hardware.Sensor sensor) {
+            CountDownLatch latch = mFlushLatch;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
     };
 
 
@@ -0,0 +1,116 @@
+package fr.inria.tyrex.senslogs.model.sensors;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.control.BatteryMonitor;
+import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
+import fr.inria.tyrex.senslogs.model.log.Log;
+
+/**
+ * Battery Sensor records the battery state each time it changes
+ * http://developer.android.com/reference/android/os/BatteryManager.html
+ */
+public class BatterySensor extends Sensor implements FieldsWritableObject {
+
+    transient private static BatterySensor instance;
+    transient private Log.RecordTimes mRecordTimes;
+    transient private BatteryMonitor mBatteryMonitor;
+
+    public static BatterySensor getInstance() {
+        if (instance == null) {
+            instance = new BatterySensor();
+        }
+        return instance;
+    }
+
+    private BatterySensor() {
+        super(TYPE_BATTERY, Category.OTHER);
+    }
+
+    @Override
+    public String getName() {
+        return "Battery";
+    }
+
+    @Override
+    public String getStringType() {
+        return null;
+    }
+
+    @Override
+    public String getStorageFileName(Context context) {
+        return context.getString(R.string.file_name_battery);
+    }
+
+    @Override
+    public String getFieldsDescription(Resources res) {
+        return res.getString(R.string.description_battery);
+    }
+
+    @Override
+    public String[] getFields(Resources resources) {
+        return resources.getStringArray(R.array.fields_battery);
+    }
+
+    @Override
+    public String getWebPage(Resources res) {
+        return res.getString(R.string.webpage_battery);
+    }
+
+    @Override
+    public boolean exists(Context context) {
+        return true;
+    }
+
+    @Override
+    public boolean checkPermission(Context context) {
+        return true;
+    }
+
+    @Override
+    public void start(Context context, Settings settings, Log.RecordTimes recordTimes) {
+
+        mRecordTimes = recordTimes;
+
+        mBatteryMonitor = BatteryMonitor.getInstance(context);
+        // Acquired first, so the state delivered when the receiver is registered is written once
+        mBatteryMonitor.acquire();
+        mBatteryMonitor.addListener(mBatteryListener);
+
+        // First state is written at start, then only on changes
+        BatteryMonitor.Snapshot snapshot = mBatteryMonitor.getSnapshot();
+        if (snapshot != null) {
+            mBatteryListener.onBatteryChanged(snapshot);
+        }
+    }
+
+    @Override
+    public void stop(Context context) {
+        if (mBatteryMonitor == null) {
+            return;
+        }
+        mBatteryMonitor.removeListener(mBatteryListener);
+        mBatteryMonitor.release();
+        mBatteryMonitor = null;
+    }
+
+    @Override
+    public boolean hasSettings() {
+        return false;
+    }
+
+    transient private final BatteryMonitor.Listener mBatteryListener = snapshot -> {
+
+        if (mListener == null) {
+            return;
+        }
+
+        mListener.onNewValues(mRecordTimes.sinceStart(),
+                mRecordTimes.sinceStart(snapshot.elapsedRealtimeNanos),
+                new Object[]{snapshot.level, snapshot.temperature, snapshot.voltage,
+                        snapshot.current == BatteryMonitor.UNKNOWN ? "" : snapshot.current,
+                        snapshot.charging ? 1 : 0});
+    };
+}
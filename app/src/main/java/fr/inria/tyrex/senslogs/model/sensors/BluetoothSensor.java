@@ -1,24 +1,68 @@
 package fr.inria.tyrex.senslogs.model.sensors;
 
 import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.Build;
+import android.os.ParcelUuid;
 
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.control.RecordingLoopers;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
 import fr.inria.tyrex.senslogs.model.log.Log;
 
 /**
- * Bluetooth Sensor
- * // TODO Not working, should be implemented
+ * Bluetooth Low Energy advertisements, from BluetoothLeScanner.
+ * When the controller supports it, results are batched in hardware and delivered every report
+ * delay, and filters are evaluated by the controller so non matching advertisements do not wake
+ * up the CPU.
  * http://developer.android.com/guide/topics/connectivity/bluetooth-le.html
  */
 public class BluetoothSensor extends Sensor implements FieldsWritableObject {
 
+    private final static String INI_SECTION_NAME = "Bluetooth";
+    private final static String INI_OPTION_SCAN_MODE = "ScanMode";
+    private final static String INI_OPTION_REPORT_DELAY = "ReportDelayMs";
+    private final static String INI_OPTION_BATCHING_SUPPORTED = "BatchingSupported";
+    private final static String INI_OPTION_OFFLOADED_FILTERING = "OffloadedFiltering";
+    private final static String INI_OPTION_FILTERS = "Filters";
+    private final static String INI_OPTION_SCAN_FAILURE = "ScanFailure";
+
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // Legacy advertisements are 31 bytes plus 31 bytes of scan response
+    private final static int ADVERTISEMENT_MAX_LENGTH = 62;
+
     transient private static BluetoothSensor instance;
 
+    transient private Log.RecordTimes mRecordTimes;
+    transient private BluetoothLeScanner mScanner;
+    transient private ScanCallback mScanCallback;
+
+    // Reused by callbacks of the radio looper to encode advertisements
+    transient private char[] mHexBuffer;
+
+    transient private Settings mSettings;
+    transient private boolean mBatchingSupported;
+    transient private boolean mBatchingUsed;
+    transient private boolean mOffloadedFiltering;
+    transient private int mFiltersCount;
+    transient private int mScanFailure;
+
     public static BluetoothSensor getInstance() {
         if (instance == null) {
             instance = new BluetoothSensor();
@@ -63,68 +107,257 @@ public class BluetoothSensor extends Sensor implements FieldsWritableObject {
 
     @Override
     public boolean exists(Context context) {
-        return false;
-//        return Build.VERSION.SDK_INT >= 21; //TODO
-//        return BluetoothAdapter.getDefaultAdapter() != null;
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE) &&
+                getAdapter(context) != null;
     }
 
     @Override
     public boolean checkPermission(Context context) {
+        // Scan results are only delivered with the location permission
         return !(Build.VERSION.SDK_INT >= 23 &&
-                context.checkSelfPermission(Manifest.permission.BLUETOOTH) != PackageManager.PERMISSION_GRANTED);
+                context.checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED);
     }
 
     @Override
-    public void start(Context context, Settings settings, Log.RecordTimes recordTimes) {
-        //TODO
-//        BluetoothManager bluetoothManager = (BluetoothManager)
-//                context.getSystemService(Context.BLUETOOTH_SERVICE);
+    public void start(Context context, Sensor.Settings settings, Log.RecordTimes recordTimes) {
+
+        if (!(settings instanceof Settings)) {
+            settings = getDefaultSettings();
+        }
 
-//        BluetoothLeScanner scanner = bluetoothManager.getAdapter().getBluetoothLeScanner();
+        if (!checkPermission(context) || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        mRecordTimes = recordTimes;
+        mSettings = (Settings) settings;
+        mScanFailure = 0;
+
+        BluetoothAdapter adapter = getAdapter(context);
+        if (adapter == null || !adapter.isEnabled()) {
+            android.util.Log.d(Application.LOG_TAG, "BluetoothSensor: adapter is disabled");
+            return;
+        }
+        mScanner = adapter.getBluetoothLeScanner();
+        if (mScanner == null) {
+            return;
+        }
 
-//        scanner.startScan(mScanCallback);
+        // Batching is not emulated by the stack, scan would fail without hardware support
+        mBatchingSupported = adapter.isOffloadedScanBatchingSupported();
+        mBatchingUsed = mSettings.reportDelayMs > 0 && mBatchingSupported;
+        mOffloadedFiltering = adapter.isOffloadedFilteringSupported();
+
+        ScanSettings.Builder scanSettings = new ScanSettings.Builder()
+                .setScanMode(mSettings.scanMode.param)
+                .setReportDelay(mBatchingUsed ? mSettings.reportDelayMs : 0);
+
+        List<ScanFilter> filters = parseFilters(mSettings.filters);
+        mFiltersCount = filters.size();
+
+        mScanCallback = new BleScanCallback();
+        mScanner.startScan(filters.isEmpty() ? null : filters, scanSettings.build(), mScanCallback);
     }
 
     @Override
     public void stop(Context context) {
-        //TODO
-//        BluetoothManager bluetoothManager = (BluetoothManager)
-//                context.getSystemService(Context.BLUETOOTH_SERVICE);
 
-//        BluetoothLeScanner scanner = bluetoothManager.getAdapter().getBluetoothLeScanner();
+        if (!checkPermission(context) || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
 
-//        scanner.stopScan(mScanCallback);
+        if (mScanner == null || mScanCallback == null) {
+            return;
+        }
+
+        BluetoothAdapter adapter = getAdapter(context);
+        if (adapter != null && adapter.isEnabled()) {
+            mScanner.stopScan(mScanCallback);
+        }
+        mScanCallback = null;
+        mScanner = null;
+    }
+
+    @Override
+    public List<Log.IniRecord> getExtraIniRecords(Context context) {
+        List<Log.IniRecord> records = new ArrayList<>();
+        if (mSettings == null) return records;
+        records.add(new Log.IniRecord(INI_SECTION_NAME, INI_OPTION_SCAN_MODE, mSettings.scanMode));
+        records.add(new Log.IniRecord(INI_SECTION_NAME, INI_OPTION_REPORT_DELAY,
+                mBatchingUsed ? mSettings.reportDelayMs : 0));
+        records.add(new Log.IniRecord(INI_SECTION_NAME, INI_OPTION_BATCHING_SUPPORTED, mBatchingSupported));
+        records.add(new Log.IniRecord(INI_SECTION_NAME, INI_OPTION_OFFLOADED_FILTERING, mOffloadedFiltering));
+        records.add(new Log.IniRecord(INI_SECTION_NAME, INI_OPTION_FILTERS, mFiltersCount));
+        if (mScanFailure != 0) {
+            records.add(new Log.IniRecord(INI_SECTION_NAME, INI_OPTION_SCAN_FAILURE, mScanFailure));
+        }
+        return records;
     }
 
     @Override
     public boolean hasSettings() {
-        return false;
-    }
-
-//    transient private ScanCallback mScanCallback = new ScanCallback() {
-//        @Override
-//        public void onScanResult(int callbackType, final ScanResult result) {
-//            long nanoTime = System.nanoTime();
-//            super.onScanResult(callbackType, result);
-//
-//            if (mListener == null) {
-//                return;
-//            }
-//
-//            mListener.onNewValues(nanoTime, new Object[]{ result.getDevice().getAddress(),
-//                    result.getRssi(), result.getScanRecord().getBytes()});
-//        }
-//
-//        @Override
-//        public void onBatchScanResults(List<ScanResult> results) {
-//            super.onBatchScanResults(results);
-//        }
-//
-//        @Override
-//        public void onScanFailed(int errorCode) {
-//            super.onScanFailed(errorCode);
-//        }
-//    };
+        return true;
+    }
+
+    @Override
+    public Settings getDefaultSettings() {
+        return Settings.DEFAULT;
+    }
+
+    private BluetoothAdapter getAdapter(Context context) {
+        BluetoothManager bluetoothManager = (BluetoothManager)
+                context.getSystemService(Context.BLUETOOTH_SERVICE);
+        return bluetoothManager == null ? null : bluetoothManager.getAdapter();
+    }
+
+    /**
+     * Filters are separated by commas, each one is a MAC address, a service UUID or a
+     * manufacturer id in hexadecimal (e.g. 0x004C). Advertisements matching any filter are kept.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static List<ScanFilter> parseFilters(String filtersString) {
+        List<ScanFilter> filters = new ArrayList<>();
+        if (filtersString == null) return filters;
+
+        for (String filter : filtersString.split(",")) {
+            filter = filter.trim();
+            if (filter.isEmpty()) continue;
+
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            try {
+                if (BluetoothAdapter.checkBluetoothAddress(filter.toUpperCase())) {
+                    builder.setDeviceAddress(filter.toUpperCase());
+                } else if (filter.startsWith("0x") || filter.startsWith("0X")) {
+                    // An empty data matches any data of the manufacturer
+                    builder.setManufacturerData(Integer.parseInt(filter.substring(2), 16), new byte[0]);
+                } else {
+                    builder.setServiceUuid(ParcelUuid.fromString(filter));
+                }
+            } catch (IllegalArgumentException e) {
+                android.util.Log.d(Application.LOG_TAG, "BluetoothSensor: invalid filter " + filter);
+                continue;
+            }
+            filters.add(builder.build());
+        }
+        return filters;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void onScanResult(ScanResult result, long systemTimestamp) {
+        if (mListener == null || mRecordTimes == null) {
+            return;
+        }
+
+        ScanRecord record = result.getScanRecord();
+
+        // Advertised power first, the one of extended advertisements otherwise
+        String txPower = "";
+        if (record != null && record.getTxPowerLevel() != Integer.MIN_VALUE) {
+            txPower = Integer.toString(record.getTxPowerLevel());
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
+                result.getTxPower() != ScanResult.TX_POWER_NOT_PRESENT) {
+            txPower = Integer.toString(result.getTxPower());
+        }
+
+        mListener.onNewValues(systemTimestamp,
+                mRecordTimes.sinceStart(result.getTimestampNanos()),
+                new Object[]{result.getDevice().getAddress(), result.getRssi(), txPower,
+                        toHex(record == null ? null : record.getBytes())});
+    }
+
+    /**
+     * Hexadecimal encoding through a reused buffer, only the resulting string is allocated
+     */
+    private String toHex(byte[] bytes) {
+        if (bytes == null) return "";
 
+        int length = bytes.length;
+        // Trailing zeros are padding of the advertisement
+        while (length > 0 && bytes[length - 1] == 0) length--;
+
+        if (mHexBuffer == null || mHexBuffer.length < length * 2) {
+            mHexBuffer = new char[Math.max(length, ADVERTISEMENT_MAX_LENGTH) * 2];
+        }
+        for (int i = 0; i < length; i++) {
+            mHexBuffer[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            mHexBuffer[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(mHexBuffer, 0, length * 2);
+    }
+
+    // Callbacks are called on the UI thread, results are handled on the radio looper
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private class BleScanCallback extends ScanCallback {
+
+        @Override
+        public void onScanResult(int callbackType, final ScanResult result) {
+            RecordingLoopers.getRadioHandler().post(() -> {
+                if (mRecordTimes == null) return;
+                onScanResult(result, mRecordTimes.sinceStart());
+            });
+        }
+
+        @Override
+        public void onBatchScanResults(final List<ScanResult> results) {
+            RecordingLoopers.getRadioHandler().post(() -> {
+                if (mRecordTimes == null) return;
+                // All results of a batch are received at the same system time
+                long systemTimestamp = mRecordTimes.sinceStart();
+                for (int i = 0, size = results.size(); i < size; i++) {
+                    onScanResult(results.get(i), systemTimestamp);
+                }
+            });
+        }
 
+        @Override
+        public void onScanFailed(int errorCode) {
+            android.util.Log.d(Application.LOG_TAG, "BluetoothSensor: scan failed " + errorCode);
+            mScanFailure = errorCode;
+        }
+    }
+
+    public enum ScanMode {
+        LOW_POWER(ScanSettings.SCAN_MODE_LOW_POWER, "Low power"),
+        BALANCED(ScanSettings.SCAN_MODE_BALANCED, "Balanced"),
+        LOW_LATENCY(ScanSettings.SCAN_MODE_LOW_LATENCY, "Low latency");
+
+        private int param;
+        private String name;
+
+        ScanMode(int param, String name) {
+            this.param = param;
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static class Settings extends Sensor.Settings {
+
+        public ScanMode scanMode;
+        // 0 to receive each advertisement as soon as it is seen
+        public long reportDelayMs;
+        public String filters;
+
+        public static Settings DEFAULT = new Settings(ScanMode.LOW_LATENCY, 0, "");
+
+        public Settings(ScanMode scanMode, long reportDelayMs, String filters) {
+            this.scanMode = scanMode;
+            this.reportDelayMs = reportDelayMs;
+            this.filters = filters;
+        }
+
+        @Override
+        public String toString() {
+            return "BluetoothSensor.Settings{" +
+                    "scanMode=" + scanMode +
+                    ", reportDelayMs=" + reportDelayMs +
+                    ", filters='" + filters + '\'' +
+                    '}';
+        }
+    }
 }
@@ -17,6 +17,7 @@ import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 
 import java.io.IOException;
@@ -67,7 +68,7 @@ public class CameraRecorder extends Sensor {
      */
     transient private Settings mSettings;
     transient private String mVideoPath;
-    transient private double mTimestampStart;
+    transient private long mTimestampStart;
     transient private Log.RecordTimes mRecordTimes;
 
 
@@ -266,7 +267,7 @@ public class CameraRecorder extends Sensor {
                 builder.addTarget(mMediaRecorder.getSurface());
                 builder.set(CaptureRequest.CONTROL_AF_MODE, mSettings.autoFocus.param);
                 session.setRepeatingRequest(builder.build(), null, mBackgroundHandler);
-                mTimestampStart = System.currentTimeMillis() / 1e3;
+                mTimestampStart = SystemClock.elapsedRealtimeNanos();
                 mMediaRecorder.start();
             } catch (CameraAccessException e) {
                 e.printStackTrace();
@@ -290,10 +291,42 @@ public class CameraRecorder extends Sensor {
         return false;
     }
 
+    @Override
+    public boolean supportsWarmPause() {
+        // MediaRecorder can only be paused from Android N
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+    }
+
+    @Override
+    public void pauseOutput(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N || mBackgroundHandler == null) return;
+        mBackgroundHandler.post(() -> {
+            try {
+                mMediaRecorder.pause();
+            } catch (IllegalStateException e) {
+                // Recording has not started yet
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void resumeOutput(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N || mBackgroundHandler == null) return;
+        mBackgroundHandler.post(() -> {
+            try {
+                mMediaRecorder.resume();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
     @Override
     public List<Log.IniRecord> getExtraIniRecords(Context context) {
         ArrayList<Log.IniRecord> iniRecords = new ArrayList<>();
-        iniRecords.add(new Log.IniRecord("Camera", "VideoOffset", mTimestampStart - mRecordTimes.startTime));
+        iniRecords.add(new Log.IniRecord("Camera", "VideoOffset",
+                mRecordTimes.sinceStart(mTimestampStart) / 1e9d));
         return iniRecords;
     }
 
@@ -0,0 +1,176 @@
+package fr.inria.tyrex.senslogs.model.sensors;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Parser of the sensor direct report format written by the sensor hub in a shared memory ring.
+ * https://developer.android.com/reference/android/hardware/SensorDirectChannel
+ *
+ * Each report is 104 bytes, little endian:
+ * size (int32), report token (int32), sensor type (int32), atomic counter (uint32),
+ * timestamp (int64, elapsed realtime nanos), values (16 x float), reserved (4 x int32).
+ *
+ * The counter of the n-th report written since the channel was configured is n, starting from 1
+ * and skipping 0 when it wraps. Reports are written at index (n - 1) modulo the ring capacity, so
+ * the parser finds new reports by following the expected counter and slot, and detects the ones
+ * overwritten before they were read. The slot is followed apart from the counter, which is not
+ * aligned with the ring any more once it has wrapped.
+ *
+ * This class has no dependency on the Android framework, values are given through a reused array
+ * so parsing does not allocate.
+ */
+public class DirectReportParser {
+
+    public final static int REPORT_SIZE = 104;
+    public final static int VALUES_COUNT = 16;
+
+    private final static int OFFSET_SIZE = 0;
+    private final static int OFFSET_TOKEN = 4;
+    private final static int OFFSET_TYPE = 8;
+    private final static int OFFSET_COUNTER = 12;
+    private final static int OFFSET_TIMESTAMP = 16;
+    private final static int OFFSET_VALUES = 24;
+
+    public interface Listener {
+        /**
+         * @param values reused between reports, it must be copied to be kept
+         */
+        void onReport(int token, int type, long timestamp, float[] values);
+    }
+
+    private final int mCapacity;
+    private final float[] mValues = new float[VALUES_COUNT];
+    private int mToken;
+    private int mType;
+    private long mTimestamp;
+
+    private int mExpectedCounter = 1;
+    private int mExpectedSlot;
+    private long mLostReports;
+
+    /**
+     * @param capacity number of reports in the ring
+     */
+    public DirectReportParser(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Start again from the first report, to be called when the channel is configured again
+     */
+    public void reset() {
+        mExpectedCounter = 1;
+        mExpectedSlot = 0;
+    }
+
+    /**
+     * Reports overwritten by the sensor hub before they were parsed
+     */
+    public long getLostReports() {
+        return mLostReports;
+    }
+
+    /**
+     * Parse all new reports of the ring
+     *
+     * @param ring content of the shared memory, at least capacity * REPORT_SIZE bytes
+     * @return number of reports given to the listener
+     */
+    public int parse(ByteBuffer ring, Listener listener) {
+        ring.order(ByteOrder.LITTLE_ENDIAN);
+
+        int count = 0;
+        while (count < mCapacity) {
+            int offset = mExpectedSlot * REPORT_SIZE;
+            int counter = ring.getInt(offset + OFFSET_COUNTER);
+
+            if (counter != mExpectedCounter) {
+                // Slot has already been written again, reports between have been lost
+                if (ring.getInt(offset + OFFSET_SIZE) == REPORT_SIZE &&
+                        isAfter(counter, mExpectedCounter) && resync(ring)) {
+                    continue;
+                }
+                break;
+            }
+
+            readReport(ring, offset);
+
+            // The report may have been overwritten while it was read
+            if (ring.getInt(offset + OFFSET_COUNTER) != counter) {
+                if (resync(ring)) continue;
+                break;
+            }
+
+            listener.onReport(mToken, mType, mTimestamp, mValues);
+            mExpectedCounter = next(mExpectedCounter);
+            mExpectedSlot = (mExpectedSlot + 1) % mCapacity;
+            count++;
+        }
+        return count;
+    }
+
+    // Copy a report, the ring can be written by the sensor hub at the same time
+    void readReport(ByteBuffer ring, int offset) {
+        mToken = ring.getInt(offset + OFFSET_TOKEN);
+        mType = ring.getInt(offset + OFFSET_TYPE);
+        mTimestamp = ring.getLong(offset + OFFSET_TIMESTAMP);
+        for (int i = 0; i < VALUES_COUNT; i++) {
+            mValues[i] = ring.getFloat(offset + OFFSET_VALUES + i * 4);
+        }
+    }
+
+    /**
+     * Move to the oldest report still in the ring
+     *
+     * @return false if there is no report after the expected one
+     */
+    private boolean resync(ByteBuffer ring) {
+        int newest = mExpectedCounter;
+        int newestSlot = -1;
+        for (int slot = 0; slot < mCapacity; slot++) {
+            int offset = slot * REPORT_SIZE;
+            if (ring.getInt(offset + OFFSET_SIZE) != REPORT_SIZE) continue;
+            int counter = ring.getInt(offset + OFFSET_COUNTER);
+            if (counter != 0 && isAfter(counter, newest)) {
+                newest = counter;
+                newestSlot = slot;
+            }
+        }
+        if (newestSlot < 0) {
+            return false;
+        }
+
+        int oldest = newest;
+        for (int i = 1; i < mCapacity; i++) {
+            oldest = previous(oldest);
+        }
+        if (!isAfter(oldest, mExpectedCounter)) {
+            return false;
+        }
+
+        // Counters skip 0, it is not a lost report
+        long lost = (oldest - mExpectedCounter) & 0xFFFFFFFFL;
+        if ((oldest & 0xFFFFFFFFL) < (mExpectedCounter & 0xFFFFFFFFL)) {
+            lost--;
+        }
+        mLostReports += lost;
+        mExpectedCounter = oldest;
+        mExpectedSlot = (newestSlot + 1) % mCapacity;
+        return true;
+    }
+
+    private static boolean isAfter(int counter, int reference) {
+        return counter - reference > 0;
+    }
+
+    private static int next(int counter) {
+        counter++;
+        return counter == 0 ? 1 : counter;
+    }
+
+    private static int previous(int counter) {
+        counter--;
+        return counter == 0 ? -1 : counter;
+    }
+}
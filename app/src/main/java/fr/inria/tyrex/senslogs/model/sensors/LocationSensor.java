@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Locale;
 
 import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.control.RecordingLoopers;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
 import fr.inria.tyrex.senslogs.model.log.Log;
 
@@ -31,7 +32,7 @@ public abstract class LocationSensor extends Sensor
     private final static String INI_OPTION_ACCURACY = "Accuracy";
     private final static String INI_OPTION_BEARING = "Bearing";
 
-    transient private double mStartTime;
+    transient private Log.RecordTimes mRecordTimes;
 
     protected LocationSensor(int type) {
         super(type, Category.RADIO_COMPUTED);
@@ -62,9 +63,9 @@ public abstract class LocationSensor extends Sensor
 
         Settings ls = (Settings) settings;
         getLocationManager(context).requestLocationUpdates(getLocationProvider(),
-                ls.minTime, ls.minDistance, mLocationListener);
+                ls.minTime, ls.minDistance, mLocationListener, RecordingLoopers.getRadioLooper());
 
-        mStartTime = recordTimes.startTime;
+        mRecordTimes = recordTimes;
     }
 
     @Override
@@ -96,13 +97,12 @@ public abstract class LocationSensor extends Sensor
     transient private LocationListener mLocationListener = new LocationListener() {
         @Override
         public void onLocationChanged(final Location location) {
-            double systemTimestamp = System.currentTimeMillis() / 1e3d - mStartTime;
-
             if (mListener == null) {
                 return;
             }
 
-            mListener.onNewValues(systemTimestamp, location.getTime() / 1e3d - mStartTime,
+            mListener.onNewValues(mRecordTimes.sinceStart(),
+                    mRecordTimes.sinceStartFromUnix(location.getTime() * 1000000L),
                     new Object[]{location.getLatitude(), location.getLongitude(),
                             location.getAltitude(), location.getBearing(), location.getAccuracy(),
                             location.getSpeed()});
@@ -141,11 +141,6 @@ public abstract class LocationSensor extends Sensor
         }
     }
 
-    @Override
-    public boolean mustRunOnUiThread() {
-        return true;
-    }
-
     @Override
     public String[] getFields(Resources resources) {
         return resources.getStringArray(R.array.fields_location);
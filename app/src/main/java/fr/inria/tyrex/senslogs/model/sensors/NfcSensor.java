@@ -30,7 +30,7 @@ import fr.inria.tyrex.senslogs.model.log.Log;
 public class NfcSensor extends Sensor implements FieldsWritableObject {
 
     transient private static NfcSensor instance;
-    transient private double mStartTime;
+    transient private Log.RecordTimes mRecordTimes;
 
     public static NfcSensor getInstance() {
         if (instance == null) {
@@ -88,7 +88,7 @@ public class NfcSensor extends Sensor implements FieldsWritableObject {
 
     @Override
     public void start(Context context, Settings settings, Log.RecordTimes recordTimes) {
-        mStartTime = recordTimes.startTime;
+        mRecordTimes = recordTimes;
         // TODO
     }
 
@@ -158,10 +158,10 @@ public class NfcSensor extends Sensor implements FieldsWritableObject {
 
     private void broadcastText(String text) {
 
-        double systemTimestamp = System.currentTimeMillis() / 1e3d - mStartTime;
-        if (mListener == null) {
+        if (mListener == null || mRecordTimes == null) {
             return;
         }
+        long systemTimestamp = mRecordTimes.sinceStart();
         mListener.onNewValues(systemTimestamp, systemTimestamp, new Object[]{text});
     }
 
@@ -0,0 +1,456 @@
+package fr.inria.tyrex.senslogs.model.sensors;
+
+/**
+ * Streaming parser of NMEA 0183 sentences.
+ * http://www.catb.org/gpsd/NMEA.html
+ *
+ * A sentence is "$TTSSS,field,field,...*HH" where TT is the talker (GP, GL, GA, GN...), SSS the
+ * sentence type and HH the xor of all characters between '$' and '*' in hexadecimal.
+ * GGA, RMC, GSA and GSV sentences with a valid checksum are decoded into typed fields, read with
+ * the getters until the next call to parse. Other sentences are only checked.
+ *
+ * Fields are read in place from the sentence, the parser does not split it and does not
+ * allocate. This class has no dependency on the Android framework.
+ */
+public class NmeaParser {
+
+    public final static int TYPE_UNKNOWN = 0;
+    public final static int TYPE_GGA = 1;
+    public final static int TYPE_RMC = 2;
+    public final static int TYPE_GSA = 3;
+    public final static int TYPE_GSV = 4;
+
+    // Value of integer fields which are empty or not in the sentence
+    public final static int NO_VALUE = -1;
+
+    public final static int MAX_GSA_SATELLITES = 12;
+    public final static int MAX_GSV_SATELLITES = 4;
+
+    private final static double KNOTS_TO_METERS_PER_SECOND = 1852d / 3600d;
+    private final static double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+            1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+    private final static long MAX_MANTISSA = 100000000000000000L;
+
+    private CharSequence mSentence;
+    // End of the fields, before the checksum
+    private int mEnd;
+    // Current field, from start inclusive to end exclusive
+    private int mFieldStart;
+    private int mFieldEnd;
+
+    private int mType;
+    private boolean mChecksumValid;
+
+    private double mTime;
+    private int mDate;
+    private double mLatitude;
+    private double mLongitude;
+    private double mAltitude;
+    private double mSpeed;
+    private double mCourse;
+    private int mFix;
+    private int mSatellites;
+    private double mHdop;
+    private double mPdop;
+    private double mVdop;
+
+    private int mSatellitesCount;
+    private final int[] mPrns = new int[MAX_GSA_SATELLITES];
+    private final int[] mElevations = new int[MAX_GSV_SATELLITES];
+    private final int[] mAzimuths = new int[MAX_GSV_SATELLITES];
+    private final int[] mSnrs = new int[MAX_GSV_SATELLITES];
+
+    /**
+     * Parse a sentence, trailing line feed is ignored
+     *
+     * @return true if the checksum is valid, fields are decoded only in this case
+     */
+    public boolean parse(CharSequence sentence) {
+        clear();
+        mSentence = sentence;
+
+        int end = sentence.length();
+        while (end > 0 && sentence.charAt(end - 1) <= ' ') end--;
+        if (end < 7 || (sentence.charAt(0) != '$' && sentence.charAt(0) != '!')) {
+            return false;
+        }
+
+        int star = end - 3;
+        if (sentence.charAt(star) != '*') {
+            return false;
+        }
+        int high = hexValue(sentence.charAt(star + 1));
+        int low = hexValue(sentence.charAt(star + 2));
+        int checksum = 0;
+        for (int i = 1; i < star; i++) {
+            checksum ^= sentence.charAt(i);
+        }
+        mChecksumValid = high >= 0 && low >= 0 && ((high << 4) | low) == checksum;
+        if (!mChecksumValid) {
+            return false;
+        }
+
+        mEnd = star;
+        mFieldEnd = 0;
+        nextField();
+
+        // Address is the talker followed by the sentence type
+        if (mFieldEnd - mFieldStart != 5) {
+            return true;
+        }
+        int t = mFieldStart + 2;
+        if (matches(t, 'G', 'G', 'A')) {
+            mType = TYPE_GGA;
+            parseGga();
+        } else if (matches(t, 'R', 'M', 'C')) {
+            mType = TYPE_RMC;
+            parseRmc();
+        } else if (matches(t, 'G', 'S', 'A')) {
+            mType = TYPE_GSA;
+            parseGsa();
+        } else if (matches(t, 'G', 'S', 'V')) {
+            mType = TYPE_GSV;
+            parseGsv();
+        }
+        return true;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean isChecksumValid() {
+        return mChecksumValid;
+    }
+
+    /**
+     * UTC time of day in seconds (GGA, RMC), NaN if not available
+     */
+    public double getTime() {
+        return mTime;
+    }
+
+    /**
+     * UTC date as yyyymmdd (RMC), NO_VALUE if not available
+     */
+    public int getDate() {
+        return mDate;
+    }
+
+    /**
+     * Degrees, negative in the south (GGA, RMC)
+     */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * Degrees, negative in the west (GGA, RMC)
+     */
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * Meters above mean sea level (GGA)
+     */
+    public double getAltitude() {
+        return mAltitude;
+    }
+
+    /**
+     * Speed over ground in m/s (RMC)
+     */
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Course over ground in degrees from true north (RMC)
+     */
+    public double getCourse() {
+        return mCourse;
+    }
+
+    /**
+     * Fix quality for GGA (0 invalid, 1 GPS, 2 DGPS...), 1 if active and 0 if void for RMC,
+     * fix type for GSA (1 none, 2 2D, 3 3D)
+     */
+    public int getFix() {
+        return mFix;
+    }
+
+    /**
+     * Satellites used for GGA, satellites in view for GSV
+     */
+    public int getSatellites() {
+        return mSatellites;
+    }
+
+    public double getHdop() {
+        return mHdop;
+    }
+
+    public double getPdop() {
+        return mPdop;
+    }
+
+    public double getVdop() {
+        return mVdop;
+    }
+
+    /**
+     * Number of satellites described by this sentence: used ones for GSA, up to 4 in view for GSV
+     */
+    public int getSatellitesCount() {
+        return mSatellitesCount;
+    }
+
+    public int getPrn(int index) {
+        return mPrns[index];
+    }
+
+    /**
+     * Degrees (GSV)
+     */
+    public int getElevation(int index) {
+        return mElevations[index];
+    }
+
+    /**
+     * Degrees from true north (GSV)
+     */
+    public int getAzimuth(int index) {
+        return mAzimuths[index];
+    }
+
+    /**
+     * Signal to noise ratio in dB-Hz, NO_VALUE when the satellite is not tracked (GSV)
+     */
+    public int getSnr(int index) {
+        return mSnrs[index];
+    }
+
+    private void clear() {
+        mType = TYPE_UNKNOWN;
+        mChecksumValid = false;
+        mTime = Double.NaN;
+        mDate = NO_VALUE;
+        mLatitude = Double.NaN;
+        mLongitude = Double.NaN;
+        mAltitude = Double.NaN;
+        mSpeed = Double.NaN;
+        mCourse = Double.NaN;
+        mFix = NO_VALUE;
+        mSatellites = NO_VALUE;
+        mHdop = Double.NaN;
+        mPdop = Double.NaN;
+        mVdop = Double.NaN;
+        mSatellitesCount = 0;
+    }
+
+    // $--GGA,time,lat,N/S,lon,E/W,quality,satellites,hdop,altitude,M,separation,M,age,station
+    private void parseGga() {
+        if (!nextField()) return;
+        mTime = fieldTime();
+        if (!nextField()) return;
+        mLatitude = fieldCoordinate(2);
+        if (!nextField()) return;
+        if (fieldChar() == 'S') mLatitude = -mLatitude;
+        if (!nextField()) return;
+        mLongitude = fieldCoordinate(3);
+        if (!nextField()) return;
+        if (fieldChar() == 'W') mLongitude = -mLongitude;
+        if (!nextField()) return;
+        mFix = fieldInt();
+        if (!nextField()) return;
+        mSatellites = fieldInt();
+        if (!nextField()) return;
+        mHdop = fieldDouble();
+        if (!nextField()) return;
+        mAltitude = fieldDouble();
+    }
+
+    // $--RMC,time,status,lat,N/S,lon,E/W,speed,course,date,variation,E/W[,mode]
+    private void parseRmc() {
+        if (!nextField()) return;
+        mTime = fieldTime();
+        if (!nextField()) return;
+        char status = fieldChar();
+        mFix = status == 'A' ? 1 : status == 'V' ? 0 : NO_VALUE;
+        if (!nextField()) return;
+        mLatitude = fieldCoordinate(2);
+        if (!nextField()) return;
+        if (fieldChar() == 'S') mLatitude = -mLatitude;
+        if (!nextField()) return;
+        mLongitude = fieldCoordinate(3);
+        if (!nextField()) return;
+        if (fieldChar() == 'W') mLongitude = -mLongitude;
+        if (!nextField()) return;
+        mSpeed = fieldDouble() * KNOTS_TO_METERS_PER_SECOND;
+        if (!nextField()) return;
+        mCourse = fieldDouble();
+        if (!nextField()) return;
+        mDate = fieldDate();
+    }
+
+    // $--GSA,mode,fix,prn x 12,pdop,hdop,vdop[,system]
+    private void parseGsa() {
+        if (!nextField()) return;
+        if (!nextField()) return;
+        mFix = fieldInt();
+        for (int i = 0; i < MAX_GSA_SATELLITES; i++) {
+            if (!nextField()) return;
+            int prn = fieldInt();
+            if (prn != NO_VALUE) {
+                mPrns[mSatellitesCount++] = prn;
+            }
+        }
+        if (!nextField()) return;
+        mPdop = fieldDouble();
+        if (!nextField()) return;
+        mHdop = fieldDouble();
+        if (!nextField()) return;
+        mVdop = fieldDouble();
+    }
+
+    // $--GSV,messages,message,satellites,(prn,elevation,azimuth,snr) x 1..4[,signal]
+    private void parseGsv() {
+        if (!nextField()) return;
+        if (!nextField()) return;
+        if (!nextField()) return;
+        mSatellites = fieldInt();
+        for (int i = 0; i < MAX_GSV_SATELLITES; i++) {
+            // A lone last field is the signal id of NMEA 4.10
+            if (!nextField()) return;
+            int prn = fieldInt();
+            if (!nextField()) return;
+            int elevation = fieldInt();
+            if (!nextField()) return;
+            int azimuth = fieldInt();
+            if (!nextField()) return;
+            int snr = fieldInt();
+            mPrns[mSatellitesCount] = prn;
+            mElevations[mSatellitesCount] = elevation;
+            mAzimuths[mSatellitesCount] = azimuth;
+            mSnrs[mSatellitesCount] = snr;
+            mSatellitesCount++;
+        }
+    }
+
+    /**
+     * Move to the next field
+     *
+     * @return false if there is no more field
+     */
+    private boolean nextField() {
+        if (mFieldEnd >= mEnd) return false;
+        mFieldStart = mFieldEnd + 1;
+        int i = mFieldStart;
+        while (i < mEnd && mSentence.charAt(i) != ',') i++;
+        mFieldEnd = i;
+        return true;
+    }
+
+    private boolean matches(int start, char c0, char c1, char c2) {
+        return mSentence.charAt(start) == c0 && mSentence.charAt(start + 1) == c1 &&
+                mSentence.charAt(start + 2) == c2;
+    }
+
+    private char fieldChar() {
+        return mFieldStart < mFieldEnd ? mSentence.charAt(mFieldStart) : 0;
+    }
+
+    private int fieldInt() {
+        return parseInt(mFieldStart, mFieldEnd);
+    }
+
+    private double fieldDouble() {
+        return parseDouble(mFieldStart, mFieldEnd);
+    }
+
+    // hhmmss.ss
+    private double fieldTime() {
+        if (mFieldEnd - mFieldStart < 6) return Double.NaN;
+        int hours = parseInt(mFieldStart, mFieldStart + 2);
+        int minutes = parseInt(mFieldStart + 2, mFieldStart + 4);
+        double seconds = parseDouble(mFieldStart + 4, mFieldEnd);
+        if (hours == NO_VALUE || minutes == NO_VALUE) return Double.NaN;
+        return hours * 3600 + minutes * 60 + seconds;
+    }
+
+    // ddmmyy
+    private int fieldDate() {
+        if (mFieldEnd - mFieldStart != 6) return NO_VALUE;
+        int day = parseInt(mFieldStart, mFieldStart + 2);
+        int month = parseInt(mFieldStart + 2, mFieldStart + 4);
+        int year = parseInt(mFieldStart + 4, mFieldStart + 6);
+        if (day == NO_VALUE || month == NO_VALUE || year == NO_VALUE) return NO_VALUE;
+        year += year < 80 ? 2000 : 1900;
+        return year * 10000 + month * 100 + day;
+    }
+
+    // Degrees on degreesDigits digits followed by decimal minutes
+    private double fieldCoordinate(int degreesDigits) {
+        if (mFieldEnd - mFieldStart < degreesDigits + 2) return Double.NaN;
+        int degrees = parseInt(mFieldStart, mFieldStart + degreesDigits);
+        double minutes = parseDouble(mFieldStart + degreesDigits, mFieldEnd);
+        if (degrees == NO_VALUE) return Double.NaN;
+        return degrees + minutes / 60;
+    }
+
+    private int parseInt(int start, int end) {
+        if (start >= end) return NO_VALUE;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = mSentence.charAt(i);
+            if (c < '0' || c > '9' || value > (Integer.MAX_VALUE - 9) / 10) return NO_VALUE;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Decimal number, fraction digits beyond the precision of a long or beyond 18 decimals are
+     * ignored
+     */
+    private double parseDouble(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (mSentence.charAt(i) == '-' || mSentence.charAt(i) == '+')) {
+            negative = mSentence.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int decimals = -1;
+        boolean digits = false;
+        for (; i < end; i++) {
+            char c = mSentence.charAt(i);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+                continue;
+            }
+            if (c < '0' || c > '9') return Double.NaN;
+            digits = true;
+            // Leading zeros of a fraction do not grow the mantissa, decimals are bounded too
+            if (mantissa >= MAX_MANTISSA || decimals >= POWERS_OF_TEN.length - 1) {
+                if (decimals < 0) return Double.NaN;
+                continue;
+            }
+            mantissa = mantissa * 10 + (c - '0');
+            if (decimals >= 0) decimals++;
+        }
+        if (!digits) return Double.NaN;
+
+        double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+}
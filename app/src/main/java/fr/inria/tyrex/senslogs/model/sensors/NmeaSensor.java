@@ -12,18 +12,35 @@ import android.os.Bundle;
 
 import androidx.annotation.RequiresApi;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.control.RecordingLoopers;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
 import fr.inria.tyrex.senslogs.model.log.Log;
 
 /**
- * NMEA Sensor provides NMEA sentences from the GPS
- * http://developer.android.com/reference/android/location/GpsStatus.NmeaListener.html
+ * NMEA Sensor provides NMEA sentences from the GPS, raw and decoded by NmeaParser
+ * http://developer.android.com/reference/android/location/OnNmeaMessageListener.html
  */
 public class NmeaSensor extends Sensor implements FieldsWritableObject {
 
+    private final static String INI_SECTION_NAME = "NMEA";
+    private final static String INI_OPTION_SENTENCES = "Sentences";
+    private final static String INI_OPTION_INVALID_SENTENCES = "InvalidSentences";
+
+    private final static String[] TYPE_NAMES = {"", "GGA", "RMC", "GSA", "GSV"};
+
     transient private static NmeaSensor instance;
-    transient private double mStartTime;
+    transient private Log.RecordTimes mRecordTimes;
+
+    // Used on the radio looper only
+    transient private NmeaParser mParser;
+    transient private StringBuilder mSatellitesBuilder;
+    transient private long mSentences;
+    transient private long mInvalidSentences;
+    transient private OnNmeaMessageListener mNmeaListener;
 
     public static NmeaSensor getInstance() {
         if (instance == null) {
@@ -90,9 +107,21 @@ public class NmeaSensor extends Sensor implements FieldsWritableObject {
             return;
         }
 
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, mLocationListener);
+        if (recordTimes != mRecordTimes) {
+            mSentences = 0;
+            mInvalidSentences = 0;
+        }
+        mRecordTimes = recordTimes;
+        if (mParser == null) {
+            mParser = new NmeaParser();
+            mSatellitesBuilder = new StringBuilder();
+            mNmeaListener = new NmeaListener();
+        }
 
-        mStartTime = recordTimes.startTime;
+        // NMEA sentences are only produced while the GPS is running
+        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, mLocationListener,
+                RecordingLoopers.getRadioLooper());
+        locationManager.addNmeaListener(mNmeaListener, RecordingLoopers.getRadioHandler());
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
@@ -105,14 +134,82 @@ public class NmeaSensor extends Sensor implements FieldsWritableObject {
             return;
         }
 
+        if (mNmeaListener != null) {
+            locationManager.removeNmeaListener(mNmeaListener);
+        }
         locationManager.removeUpdates(mLocationListener);
     }
 
+    @Override
+    public List<Log.IniRecord> getExtraIniRecords(Context context) {
+        List<Log.IniRecord> records = new ArrayList<>();
+        records.add(new Log.IniRecord(INI_SECTION_NAME, INI_OPTION_SENTENCES, mSentences));
+        records.add(new Log.IniRecord(INI_SECTION_NAME, INI_OPTION_INVALID_SENTENCES, mInvalidSentences));
+        return records;
+    }
+
     @Override
     public boolean hasSettings() {
         return false;
     }
 
+    // Created on start, the interface does not exist before Android N
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private class NmeaListener implements OnNmeaMessageListener {
+        @Override
+        public void onNmeaMessage(String message, long timestamp) {
+            if (mListener == null || mRecordTimes == null) {
+                return;
+            }
+
+            NmeaParser parser = mParser;
+            mSentences++;
+            if (!parser.parse(message)) {
+                mInvalidSentences++;
+            }
+
+            // Fields which are not in the sentence are empty
+            mListener.onNewValues(mRecordTimes.sinceStart(),
+                    mRecordTimes.sinceStartFromUnix(timestamp * 1000000L),
+                    new Object[]{TYPE_NAMES[parser.getType()], parser.isChecksumValid() ? 1 : 0,
+                            format(parser.getTime()), format(parser.getDate()),
+                            format(parser.getLatitude()), format(parser.getLongitude()),
+                            format(parser.getAltitude()), format(parser.getSpeed()),
+                            format(parser.getCourse()), format(parser.getFix()),
+                            format(parser.getSatellites()), format(parser.getHdop()),
+                            format(parser.getPdop()), format(parser.getVdop()),
+                            formatSatellites(parser), message.trim()});
+        }
+    }
+
+    private static Object format(double value) {
+        return Double.isNaN(value) ? "" : value;
+    }
+
+    private static Object format(int value) {
+        return value == NmeaParser.NO_VALUE ? "" : value;
+    }
+
+    /**
+     * PRNs used for GSA, prn:elevation:azimuth:snr of satellites in view for GSV
+     */
+    private String formatSatellites(NmeaParser parser) {
+        if (parser.getSatellitesCount() == 0) return "";
+
+        StringBuilder builder = mSatellitesBuilder;
+        builder.setLength(0);
+        for (int i = 0; i < parser.getSatellitesCount(); i++) {
+            if (i > 0) builder.append(' ');
+            builder.append(parser.getPrn(i));
+            if (parser.getType() == NmeaParser.TYPE_GSV) {
+                builder.append(':').append(format(parser.getElevation(i)))
+                        .append(':').append(format(parser.getAzimuth(i)))
+                        .append(':').append(format(parser.getSnr(i)));
+            }
+        }
+        return builder.toString();
+    }
+
     transient private LocationListener mLocationListener = new LocationListener() {
         @Override
         public void onLocationChanged(Location location) {
@@ -130,9 +227,4 @@ public class NmeaSensor extends Sensor implements FieldsWritableObject {
         public void onProviderDisabled(String provider) {
         }
     };
-
-    @Override
-    public boolean mustRunOnUiThread() {
-        return true;
-    }
 }
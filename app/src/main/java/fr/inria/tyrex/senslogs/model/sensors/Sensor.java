@@ -34,6 +34,7 @@ public abstract class Sensor implements Serializable, WritableObject {
     public final static int TYPE_BLUETOOTH = 0x305;
     public final static int TYPE_NFC = 0x306;
     public final static int TYPE_CAMERA = 0x307;
+    public final static int TYPE_BATTERY = 0x308;
 
 
     protected Category mCategory;
@@ -65,6 +66,24 @@ public abstract class Sensor implements Serializable, WritableObject {
 
     public abstract void stop(Context context);
 
+    /**
+     * True if the sensor can keep running while the recorder is paused, its values are then
+     * dropped by the recorder
+     */
+    public boolean supportsWarmPause() {
+        return true;
+    }
+
+    /**
+     * Called when the recorder is paused while the sensor keeps running, sensors which write
+     * their own output have to pause it
+     */
+    public void pauseOutput(Context context) {
+    }
+
+    public void resumeOutput(Context context) {
+    }
+
 
     @Override
     public boolean equals(Object o) {
@@ -146,23 +165,36 @@ public abstract class Sensor implements Serializable, WritableObject {
     /*
     Listener
      */
-    public void setListener(Listener listener) {
+    public synchronized void setListener(Listener listener) {
         mListener = listener;
     }
 
+    public Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Remove the listener, unless it has been replaced since
+     */
+    public synchronized void removeListener(Listener listener) {
+        if (mListener == listener) {
+            mListener = null;
+        }
+    }
+
     // TODO move it to a field sensor
     public interface Listener {
         /**
          * Called for each new value from a sensor
          *
-         * @param diffTimeSystem difference time between beginning of capture and event received
+         * @param diffTimeSystem nanoseconds between beginning of capture and event received
          *                       by system from sensor
-         * @param diffTimeSensor difference time between beginning of capture and sensor event. This
+         * @param diffTimeSensor nanoseconds between beginning of capture and sensor event. This
          *                       value is equal to diffTimeSystem if there is no specific timestamp
          *                       from sensor
          * @param objects        data
          */
-        void onNewValues(double diffTimeSystem, double diffTimeSensor, Object[] objects);
+        void onNewValues(long diffTimeSystem, long diffTimeSensor, Object[] objects);
     }
 
 
@@ -11,9 +11,9 @@ import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Handler;
-import android.os.Looper;
 
 import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.control.RecordingLoopers;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
 import fr.inria.tyrex.senslogs.model.log.Log;
 
@@ -26,10 +26,10 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
     transient private WifiScanReceiver mWifiScanReceiver = null;
 
     transient private static WifiSensor instance;
-    transient private double mStartTime;
-    transient private double mStartTimeMinusBoot;
+    transient private Log.RecordTimes mRecordTimes;
 
     transient private long mTimeStartScan;
+    transient private Runnable mRunnableRescan;
 
     public static WifiSensor getInstance() {
         if (instance == null) {
@@ -93,18 +93,18 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
         }
 
         mWifiScanReceiver = new WifiScanReceiver();
-        context.registerReceiver(mWifiScanReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        final Handler handler = RecordingLoopers.getRadioHandler();
+        context.registerReceiver(mWifiScanReceiver,
+                new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION), null, handler);
 
 
         final WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
         wifiManager.startScan();
         mTimeStartScan = System.currentTimeMillis();
 
-        mStartTime = recordTimes.startTime;
-        mStartTimeMinusBoot = recordTimes.startTime - recordTimes.bootTime;
+        mRecordTimes = recordTimes;
 
-        final Handler handler = new Handler(Looper.getMainLooper());
-        final Runnable runnableRescan = new Runnable() {
+        mRunnableRescan = new Runnable() {
             public void run() {
                 handler.postDelayed(this, 1000);
 
@@ -113,7 +113,7 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
                 }
             }
         };
-        handler.post(runnableRescan);
+        handler.post(mRunnableRescan);
     }
 
     @Override
@@ -123,6 +123,10 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
             return;
         }
 
+        if (mRunnableRescan != null) {
+            RecordingLoopers.getRadioHandler().removeCallbacks(mRunnableRescan);
+            mRunnableRescan = null;
+        }
         context.unregisterReceiver(mWifiScanReceiver);
         mWifiScanReceiver = null;
     }
@@ -135,7 +139,7 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
     private class WifiScanReceiver extends BroadcastReceiver {
 
         public void onReceive(Context c, Intent intent) {
-            double systemTimestamp = System.currentTimeMillis() / 1e3d - mStartTime;
+            long systemTimestamp = mRecordTimes.sinceStart();
 
             final WifiManager wifiManager = (WifiManager) c.getSystemService(Context.WIFI_SERVICE);
             if (mWifiScanReceiver != null) {
@@ -150,9 +154,10 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
 
             for (ScanResult scan : wifiManager.getScanResults()) {
 
-                double diffTime;
+                long diffTime;
                 if (Build.VERSION.SDK_INT >= 17) {
-                    diffTime = scan.timestamp / 1e6d - mStartTimeMinusBoot;
+                    // Scan timestamp is in microseconds since boot
+                    diffTime = mRecordTimes.sinceStart(scan.timestamp * 1000L);
                 } else {
                     diffTime = systemTimestamp;
                 }
@@ -58,7 +58,6 @@ public class LogsFragment extends Fragment {
     public static final String INPUT_LOG = "log";
     private static final String BUNDLE_TAG = "logsFragment";
 
-    private static final int REQUEST_CODE_SHARE = 1;
     private static final int MY_PERMISSIONS_REQUEST = 2;
 
     private RecyclerView mRecyclerView;
@@ -70,7 +69,6 @@ public class LogsFragment extends Fragment {
     private FragmentLogsBinding mBinding;
 
     private boolean mAskCopy = false;
-    private boolean mAskShare = false;
     private Log mTmpLog = null;
 
     @Override
@@ -148,9 +146,17 @@ public class LogsFragment extends Fragment {
 
         if (selectedLog != null) selectLog(selectedLog);
 
+        mLogsManager.addListener(mLogsListener);
+
         return v;
     }
 
+    @Override
+    public void onDestroyView() {
+        mLogsManager.removeListener(mLogsListener);
+        super.onDestroyView();
+    }
+
 
     private void selectLog(Log log) {
 
@@ -195,11 +201,6 @@ public class LogsFragment extends Fragment {
     }
 
 
-    private File mSharedTmpFile;
-
-
-
-
     /*
     Actions
      */
@@ -208,17 +209,17 @@ public class LogsFragment extends Fragment {
         List<Log> tmpList = new ArrayList<>();
         tmpList.add(log);
         delete(tmpList);
-
-        mBinding.setLogs(mLogsManager.getLogs());
     }
 
     private void delete(List<Log> logs) {
 
-        for (Log log : logs) {
-            mRecyclerView.getAdapter().notifyItemRemoved(mLogs.indexOf(log));
-            mLogsManager.deleteLog(log);
+        if (logs.isEmpty()) {
+            return;
         }
 
+        // List is refreshed once by mLogsListener
+        mLogsManager.deleteAll(logs);
+
         String snackBarMessage;
         if (logs.size() > 1) {
             snackBarMessage = String.format(getString(R.string.log_multiple_deleted_snackbar),
@@ -229,74 +230,38 @@ public class LogsFragment extends Fragment {
         }
 
         Snackbar.make(mRecyclerView, Html.fromHtml(snackBarMessage), Snackbar.LENGTH_LONG).show();
-
-        mBinding.setLogs(mLogsManager.getLogs());
     }
 
-
-    private void share(final Log log) {
-
-        if (!mAskShare && ContextCompat.checkSelfPermission(getContext(),
-                Manifest.permission.WRITE_EXTERNAL_STORAGE)
-                != PackageManager.PERMISSION_GRANTED) {
-            requestPermissions(new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE},
-                    MY_PERMISSIONS_REQUEST);
-            mAskShare = true;
-            mTmpLog = log;
-            return;
-        }
-
-        mAskShare = false;
-        mTmpLog = null;
-
-        mSharedTmpFile = new File(getActivity().getExternalCacheDir(), log.getZipFile().getName());
-
-        final ProgressDialog alertDialog = new ProgressDialog(getActivity());
-        alertDialog.setCancelable(false);
-        alertDialog.setMax((int) log.getZipFile().length());
-
-        CopyTask task = new CopyTask();
-        CopyTask.Listener listener = new CopyTask.Listener() {
-            @Override
-            public void onCopyFinished(File outputFile) {
-                alertDialog.dismiss();
+    private final LogsManager.Listener mLogsListener = new LogsManager.Listener() {
+        @Override
+        public void onLogsChanged() {
+            if (mRecyclerView != null) {
+                mRecyclerView.getAdapter().notifyDataSetChanged();
             }
-
-            @Override
-            public void onProgress(Long currentSize) {
-                alertDialog.setProgress(currentSize.intValue());
+            if (mBinding != null) {
+                mBinding.setLogs(mLogsManager.getLogs());
             }
-        };
-        task.setListener(listener);
-        task.execute(new CopyTask.Input(log.getZipFile(), mSharedTmpFile));
+        }
+    };
+
 
+    private void share(final Log log) {
 
-        if(getContext() == null) return;
+        if (getContext() == null) return;
 
-        Uri zipUri = FileProvider.getUriForFile(getContext(),
-                getContext().getPackageName() + ".provider",
-                mSharedTmpFile);
+        // The zip is exposed read-only by the FileProvider and streamed from its storage,
+        // no copy is needed.
+        Uri zipUri = log.getZipUri() != null ? Uri.parse(log.getZipUri()) :
+                FileProvider.getUriForFile(getContext(),
+                        getContext().getPackageName() + ".provider",
+                        log.getZipFile());
 
         Intent shareIntent = new Intent();
         shareIntent.setAction(Intent.ACTION_SEND);
         shareIntent.putExtra(Intent.EXTRA_STREAM, zipUri);
         shareIntent.setType("application/zip");
-        startActivityForResult(Intent.createChooser(shareIntent,
-                getText(R.string.send_to)), REQUEST_CODE_SHARE);
-    }
-
-
-    @Override
-    public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        super.onActivityResult(requestCode, resultCode, data);
-
-        if (requestCode == REQUEST_CODE_SHARE && mSharedTmpFile != null) {
-            // Following code works only if the file finished to be sent like gmail.
-//            if(!mSharedTmpFile.delete()) {
-//                android.util.Log.e(Application.LOG_TAG, "Cannot delete log file");
-//            }
-            mSharedTmpFile = null;
-        }
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(shareIntent, getText(R.string.send_to)));
     }
 
 
@@ -324,6 +289,10 @@ public class LogsFragment extends Fragment {
         CopyTask.Listener listener = new CopyTask.Listener() {
             @Override
             public void onCopyFinished(File outputFile) {
+                if (outputFile == null) {
+                    alertDialog.dismiss();
+                    return;
+                }
                 String outputPath = outputFile.getParentFile().getName() + File.separator +
                         outputFile.getName();
                 Snackbar snackbar = Snackbar.make(mRecyclerView,
@@ -491,8 +460,6 @@ public class LogsFragment extends Fragment {
             case MY_PERMISSIONS_REQUEST: {
                 if (mAskCopy) {
                     copy(mTmpLog);
-                } else if (mAskShare) {
-                    share(mTmpLog);
                 }
             }
         }
@@ -5,8 +5,10 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.net.Uri;
 import android.os.Bundle;
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import com.google.android.material.snackbar.Snackbar;
 import androidx.core.app.ActivityOptionsCompat;
 import androidx.fragment.app.DialogFragment;
@@ -38,6 +40,7 @@ import fr.inria.tyrex.senslogs.control.LogsManager;
 import fr.inria.tyrex.senslogs.control.PreferencesManager;
 import fr.inria.tyrex.senslogs.control.Recorder;
 import fr.inria.tyrex.senslogs.control.SensorsManager;
+import fr.inria.tyrex.senslogs.model.ArchiveDestination;
 import fr.inria.tyrex.senslogs.model.log.Log;
 import fr.inria.tyrex.senslogs.model.sensors.AndroidSensor;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
@@ -56,6 +59,7 @@ public class MainFragment extends Fragment {
 
     private final static int REQUEST_CODE_RECORDER = 1;
     private final static int REQUEST_CODE_LOGS = 2;
+    private final static int REQUEST_CODE_ARCHIVE_TREE = 4;
 
     private static final int MY_PERMISSIONS_REQUEST = 3;
 
@@ -105,6 +109,9 @@ public class MainFragment extends Fragment {
                 menu.performIdentifierAction(mActionLogMenuItem.getItemId(), 0));
 
         mActionLogMenuItem.setVisible(mLogManager.getLogs().size() != 0);
+
+        menu.findItem(R.id.action_keep_sensors_warm).setChecked(
+                mPreferencesManager.getKeepWarmTimeoutMs() > 0);
     }
 
     @Override
@@ -114,6 +121,17 @@ public class MainFragment extends Fragment {
             case R.id.action_logs:
                 startLogsActivity(null);
                 break;
+
+            case R.id.action_archive_destination:
+                showArchiveDestinationDialog();
+                break;
+
+            case R.id.action_keep_sensors_warm:
+                boolean keepWarm = !item.isChecked();
+                item.setChecked(keepWarm);
+                mPreferencesManager.setKeepWarmTimeoutMs(keepWarm ?
+                        getResources().getInteger(R.integer.sensors_keep_warm_opt_in_ms) : 0);
+                break;
         }
 
         return true;
@@ -243,17 +261,12 @@ public class MainFragment extends Fragment {
             case Sensor.TYPE_LOCATION_GPS:
             case Sensor.TYPE_LOCATION_PASSIVE:
             case Sensor.TYPE_NMEA:
+            case Sensor.TYPE_BLUETOOTH:
                 if (ContextCompat.checkSelfPermission(getContext(),
                         Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
                     permissions = new String[]{Manifest.permission.ACCESS_FINE_LOCATION};
                 }
                 break;
-            case Sensor.TYPE_BLUETOOTH:
-                if (ContextCompat.checkSelfPermission(getContext(), Manifest.permission.BLUETOOTH)
-                        != PackageManager.PERMISSION_GRANTED) {
-                    permissions = new String[]{Manifest.permission.BLUETOOTH};
-                }
-                break;
             case Sensor.TYPE_NFC:
                 if (ContextCompat.checkSelfPermission(getContext(),
                         Manifest.permission.NFC) != PackageManager.PERMISSION_GRANTED) {
@@ -281,6 +294,29 @@ public class MainFragment extends Fragment {
 
     }
 
+    private void showArchiveDestinationDialog() {
+
+        ArchiveDestination destination = mPreferencesManager.getArchiveDestination();
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.archive_destination_title)
+                .setSingleChoiceItems(R.array.archive_destination_types,
+                        destination.type.ordinal(), (dialog, which) -> {
+                            dialog.dismiss();
+                            ArchiveDestination.Type type = ArchiveDestination.Type.values()[which];
+                            if (type != ArchiveDestination.Type.DOCUMENT_TREE) {
+                                mPreferencesManager.setArchiveDestination(
+                                        new ArchiveDestination(type, null));
+                            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE),
+                                        REQUEST_CODE_ARCHIVE_TREE);
+                            }
+                        })
+                .setNegativeButton(R.string.settings_cancel, (dialog, which) -> {
+                })
+                .show();
+    }
+
     private void startLogsActivity(Log log) {
 
         Intent intent = new Intent(getActivity(), LogsActivity.class);
@@ -297,6 +333,19 @@ public class MainFragment extends Fragment {
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
 
+        if (requestCode == REQUEST_CODE_ARCHIVE_TREE) {
+            if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null &&
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                Uri treeUri = data.getData();
+                // Keep access to the folder after a reboot
+                getActivity().getContentResolver().takePersistableUriPermission(treeUri,
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+                mPreferencesManager.setArchiveDestination(new ArchiveDestination(
+                        ArchiveDestination.Type.DOCUMENT_TREE, treeUri.toString()));
+            }
+            return;
+        }
+
         if (requestCode != REQUEST_CODE_RECORDER && requestCode != REQUEST_CODE_LOGS) {
             return;
         }
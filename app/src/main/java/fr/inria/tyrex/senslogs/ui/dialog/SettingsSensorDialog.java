@@ -7,6 +7,7 @@ import androidx.fragment.app.DialogFragment;
 import androidx.appcompat.app.AlertDialog;
 import android.view.View;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.SpinnerAdapter;
@@ -16,6 +17,7 @@ import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.control.PreferencesManager;
 import fr.inria.tyrex.senslogs.model.sensors.AndroidSensor;
+import fr.inria.tyrex.senslogs.model.sensors.BluetoothSensor;
 import fr.inria.tyrex.senslogs.model.sensors.CameraRecorder;
 import fr.inria.tyrex.senslogs.model.sensors.LocationSensor;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
@@ -75,8 +77,21 @@ public class SettingsSensorDialog extends DialogFragment {
                         break;
                     }
                 }
+
+                if (mobileSensorSettings.samplingPeriodUs > 0) {
+                    ((TextView) v.findViewById(R.id.settings_sensor_sampling_period)).
+                            setText(String.format("%d", mobileSensorSettings.samplingPeriodUs));
+                }
+                ((TextView) v.findViewById(R.id.settings_sensor_max_report_latency)).
+                        setText(String.format("%d", mobileSensorSettings.maxReportLatencyUs / 1000));
             }
 
+            CheckBox directChannel = v.findViewById(R.id.settings_sensor_direct_channel);
+            boolean directChannelSupported = ((AndroidSensor) sensor).isDirectChannelSupported();
+            directChannel.setEnabled(directChannelSupported);
+            directChannel.setChecked(directChannelSupported && mobileSensorSettings != null &&
+                    mobileSensorSettings.directChannel);
+
         } else if (sensor instanceof LocationSensor) {
             v = View.inflate(getActivity(), R.layout.dialog_sensor_location_settings, null);
 
@@ -127,6 +142,33 @@ public class SettingsSensorDialog extends DialogFragment {
             }
 
 
+        } else if (sensor instanceof BluetoothSensor) {
+            v = View.inflate(getActivity(), R.layout.dialog_sensor_bluetooth_settings, null);
+
+            BluetoothSensor.Settings bluetoothSettings = (BluetoothSensor.Settings) settings;
+
+            Spinner spinnerScanMode = (Spinner) v.findViewById(R.id.settings_sensor_bluetooth_scan_mode);
+            BluetoothSensor.ScanMode[] scanModes = BluetoothSensor.ScanMode.values();
+            ArrayAdapter<BluetoothSensor.ScanMode> dataAdapterScanMode =
+                    new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, scanModes);
+            dataAdapterScanMode.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+            spinnerScanMode.setAdapter(dataAdapterScanMode);
+
+            if (bluetoothSettings != null) {
+                int numberOfItemsScanMode = spinnerScanMode.getCount();
+                for (int i = 0; i < numberOfItemsScanMode; i++) {
+                    if (bluetoothSettings.scanMode.equals(spinnerScanMode.getItemAtPosition(i))) {
+                        spinnerScanMode.setSelection(i);
+                        break;
+                    }
+                }
+
+                ((TextView) v.findViewById(R.id.settings_sensor_bluetooth_report_delay)).
+                        setText(String.format("%d", bluetoothSettings.reportDelayMs));
+                ((TextView) v.findViewById(R.id.settings_sensor_bluetooth_filters)).
+                        setText(bluetoothSettings.filters);
+            }
+
         } else {
             return builder.create();
 
@@ -143,7 +185,32 @@ public class SettingsSensorDialog extends DialogFragment {
                         Spinner spinner = v.findViewById(R.id.settings_sensor_delay);
                         String result = spinner.getSelectedItem().toString();
                         int delay = AndroidSensor.Settings.getDelayIntegerFromString(result);
-                        settings1 = new AndroidSensor.Settings(delay);
+                        String maxReportLatencyString = ((EditText) v.findViewById(
+                                R.id.settings_sensor_max_report_latency)).getText().toString();
+                        // Latency is given to the SensorManager as an int in microseconds
+                        long maxReportLatencyMs = parseLong(maxReportLatencyString,
+                                Integer.MAX_VALUE / 1000);
+                        String samplingPeriodString = ((EditText) v.findViewById(
+                                R.id.settings_sensor_sampling_period)).getText().toString();
+                        int samplingPeriodUs = (int) parseLong(samplingPeriodString,
+                                Integer.MAX_VALUE);
+                        boolean directChannel = ((CheckBox) v.findViewById(
+                                R.id.settings_sensor_direct_channel)).isChecked();
+                        settings1 = new AndroidSensor.Settings(delay, maxReportLatencyMs * 1000,
+                                samplingPeriodUs, directChannel);
+
+                    } else if (sensor instanceof BluetoothSensor) {
+
+                        Spinner spinnerScanMode = v.findViewById(R.id.settings_sensor_bluetooth_scan_mode);
+                        String reportDelayString = ((EditText) v.findViewById(
+                                R.id.settings_sensor_bluetooth_report_delay)).getText().toString();
+                        long reportDelayMs = parseLong(reportDelayString, Long.MAX_VALUE);
+                        String filters = ((EditText) v.findViewById(
+                                R.id.settings_sensor_bluetooth_filters)).getText().toString();
+
+                        settings1 = new BluetoothSensor.Settings(
+                                (BluetoothSensor.ScanMode) spinnerScanMode.getSelectedItem(),
+                                reportDelayMs, filters);
 
                     } else if (sensor instanceof LocationSensor) {
 
@@ -152,8 +219,8 @@ public class SettingsSensorDialog extends DialogFragment {
                         String minDistanceString = ((EditText) v.findViewById(R.id.settings_sensor_min_distance)).
                                 getText().toString();
 
-                        settings1 = new LocationSensor.Settings(Long.valueOf(minTimeString),
-                                Float.valueOf(minDistanceString));
+                        settings1 = new LocationSensor.Settings(parseLong(minTimeString, Long.MAX_VALUE),
+                                parseFloat(minDistanceString));
                     } else {
                         Spinner spinnerQuality = v.findViewById(R.id.settings_sensor_camera_quality);
                         Spinner spinnerAF = v.findViewById(R.id.settings_sensor_camera_af);
@@ -170,4 +237,24 @@ public class SettingsSensorDialog extends DialogFragment {
         });
         return builder.create();
     }
+
+    /**
+     * Positive number bounded by max, 0 if the input is empty or not a number
+     */
+    private static long parseLong(String value, long max) {
+        try {
+            return Math.min(Math.max(Long.parseLong(value.trim()), 0), max);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static float parseFloat(String value) {
+        try {
+            float result = Float.parseFloat(value.trim());
+            return Float.isNaN(result) || result < 0 ? 0 : result;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
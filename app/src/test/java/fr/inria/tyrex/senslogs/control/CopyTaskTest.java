@@ -0,0 +1,222 @@
+package fr.inria.tyrex.senslogs.control;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CopyTaskTest {
+
+    private final static int CHUNK_SIZE = 4096;
+
+    private File mSrc;
+    private File mDst;
+
+    @Before
+    public void setUp() throws IOException {
+        mSrc = File.createTempFile("copy-src", ".zip");
+        mDst = File.createTempFile("copy-dst", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        mSrc.delete();
+        mDst.delete();
+    }
+
+    private byte[] writeSource(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Files.write(mSrc.toPath(), data);
+        return data;
+    }
+
+    @Test
+    public void copiesChunkByChunk() throws IOException {
+        byte[] data = writeSource(10 * CHUNK_SIZE + 123);
+        final List<Long> positions = new ArrayList<>();
+
+        try (FileChannel in = new FileInputStream(mSrc).getChannel();
+             FileChannel out = new FileOutputStream(mDst).getChannel()) {
+            assertTrue(CopyTask.copy(in, out, CHUNK_SIZE, (position, size) -> {
+                assertEquals(data.length, size);
+                positions.add(position);
+                return true;
+            }));
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(mDst.toPath()));
+        assertEquals(11, positions.size());
+        assertEquals(CHUNK_SIZE, (long) positions.get(0));
+        assertEquals(data.length, (long) positions.get(positions.size() - 1));
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        writeSource(0);
+        try (FileChannel in = new FileInputStream(mSrc).getChannel();
+             FileChannel out = new FileOutputStream(mDst).getChannel()) {
+            assertTrue(CopyTask.copy(in, out, CHUNK_SIZE, (position, size) -> {
+                throw new AssertionError("no chunk expected");
+            }));
+        }
+        assertEquals(0, mDst.length());
+    }
+
+    @Test
+    public void listenerStopsTheCopy() throws IOException {
+        writeSource(3 * CHUNK_SIZE);
+        try (FileChannel in = new FileInputStream(mSrc).getChannel();
+             FileChannel out = new FileOutputStream(mDst).getChannel()) {
+            assertFalse(CopyTask.copy(in, out, CHUNK_SIZE, (position, size) -> false));
+        }
+        assertEquals(CHUNK_SIZE, mDst.length());
+    }
+
+    @Test
+    public void transferFromFallbackKeepsTheOutputPosition() throws IOException {
+        byte[] data = writeSource(6 * CHUNK_SIZE + 7);
+
+        // Every other transferTo makes no progress, so chunks alternate between both paths
+        try (FileChannel in = new StallingChannel(new FileInputStream(mSrc).getChannel());
+             FileChannel out = new FileOutputStream(mDst).getChannel()) {
+            assertTrue(CopyTask.copy(in, out, CHUNK_SIZE, (position, size) -> true));
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(mDst.toPath()));
+    }
+
+    @Test
+    public void copySynchronously() throws IOException {
+        byte[] data = writeSource(CHUNK_SIZE + 1);
+        assertTrue(CopyTask.copySynchronously(mSrc, mDst));
+        assertArrayEquals(data, Files.readAllBytes(mDst.toPath()));
+    }
+
+    @Test
+    public void missingSourceDeletesTheCopy() {
+        assertTrue(mSrc.delete());
+        assertFalse(CopyTask.copySynchronously(mSrc, mDst));
+        assertFalse(mDst.exists());
+    }
+
+    /**
+     * File channel whose transferTo returns 0 every other call
+     */
+    private static class StallingChannel extends FileChannel {
+
+        private final FileChannel mChannel;
+        private boolean mStall;
+
+        StallingChannel(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            mStall = !mStall;
+            return mStall ? 0 : mChannel.transferTo(position, count, target);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return mChannel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return mChannel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return mChannel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return mChannel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return mChannel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            mChannel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            mChannel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            mChannel.force(metaData);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return mChannel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return mChannel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return mChannel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return mChannel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return mChannel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return mChannel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            mChannel.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package fr.inria.tyrex.senslogs.control;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import fr.inria.tyrex.senslogs.model.log.Log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LogsManagerTest {
+
+    private static Log log(String id, String zipFile) {
+        Log log = new Log();
+        log.setId(id);
+        log.setZipFile(new File(zipFile));
+        return log;
+    }
+
+    @Test
+    public void distinctByIdKeepsTheLastLog() {
+        Log first = log("a", "/sdcard/a-1.zip");
+        Log other = log("b", "/sdcard/b.zip");
+        Log last = log("a", "/sdcard/a-2.zip");
+
+        List<Log> logs = new ArrayList<>(LogsManager.distinctById(Arrays.asList(first, other, last)));
+        assertEquals(2, logs.size());
+        assertSame(last, logs.get(0));
+        assertSame(other, logs.get(1));
+    }
+
+    @Test
+    public void logWithoutIdIsIdentifiedByItsArchive() {
+        Log first = log(null, "/sdcard/a.zip");
+        Log second = log(null, "/sdcard/a.zip");
+        Log other = log(null, "/sdcard/b.zip");
+
+        Collection<Log> logs = LogsManager.distinctById(Arrays.asList(first, second, other));
+        assertEquals(2, logs.size());
+        assertEquals(new File("/sdcard/a.zip").getAbsolutePath(), second.getId());
+        assertTrue(logs.contains(second));
+    }
+
+    @Test
+    public void replaceByIdRemovesTheKnownLog() {
+        Log known = log("a", "/sdcard/a.zip");
+        Log kept = log("b", "/sdcard/b.zip");
+        List<Log> catalog = new ArrayList<>(Arrays.asList(known, kept));
+
+        Log imported = log("a", "/sdcard/a-copy.zip");
+        Log added = log("c", "/sdcard/c.zip");
+        List<Log> replaced = LogsManager.replaceById(catalog, Arrays.asList(imported, added));
+
+        assertEquals(Collections.singletonList(known), replaced);
+        assertSame(known, replaced.get(0));
+        assertEquals(3, catalog.size());
+        assertSame(kept, catalog.get(0));
+        assertSame(imported, catalog.get(1));
+        assertSame(added, catalog.get(2));
+    }
+
+    @Test
+    public void importingTwiceDoesNotDuplicate() {
+        List<Log> catalog = new ArrayList<>();
+        LogsManager.replaceById(catalog, LogsManager.distinctById(
+                Arrays.asList(log("a", "/sdcard/a.zip"), log("b", "/sdcard/b.zip"))));
+        List<Log> replaced = LogsManager.replaceById(catalog, LogsManager.distinctById(
+                Arrays.asList(log("a", "/sdcard/a.zip"), log("b", "/sdcard/b.zip"))));
+
+        assertEquals(2, replaced.size());
+        assertEquals(2, catalog.size());
+    }
+}
@@ -0,0 +1,186 @@
+package fr.inria.tyrex.senslogs.control;
+
+import com.thegrizzlylabs.sardineandroid.impl.OkHttpSardine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ResumableUploadTest {
+
+    private final static int CHUNK_SIZE = 4096;
+    private final static String PATH = "/records/record-1.zip";
+
+    private WebDavStandIn mServer;
+    private ResumableUpload mUpload;
+    private File mFile;
+    private byte[] mData;
+    // Offsets reported to the checkpoint
+    private List<Long> mCheckpoints;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new WebDavStandIn();
+        OkHttpClient client = new OkHttpClient();
+        OkHttpSardine sardine = new OkHttpSardine(client);
+        sardine.setCredentials("user", "password");
+        mUpload = new ResumableUpload(client, sardine, "user", "password", CHUNK_SIZE);
+
+        mFile = File.createTempFile("record", ".zip");
+        mData = new byte[5 * CHUNK_SIZE + 100];
+        new Random(1).nextBytes(mData);
+        Files.write(mFile.toPath(), mData);
+        mCheckpoints = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        mFile.delete();
+    }
+
+    private void upload(long offset) throws IOException {
+        mUpload.upload(mFile, mServer.getUrl(PATH), "application/zip", offset, mCheckpoints::add);
+    }
+
+    private long getLastCheckpoint() {
+        return mCheckpoints.isEmpty() ? 0 : mCheckpoints.get(mCheckpoints.size() - 1);
+    }
+
+    @Test
+    public void smallFileIsSentAtOnce() throws IOException {
+        mData = Arrays.copyOf(mData, CHUNK_SIZE);
+        Files.write(mFile.toPath(), mData);
+
+        upload(0);
+        assertArrayEquals(mData, mServer.getResource(PATH));
+        assertEquals(Arrays.asList((long) CHUNK_SIZE), mCheckpoints);
+        assertEquals(1, mServer.getRequests());
+    }
+
+    @Test
+    public void chunksAreMovedOnceComplete() throws IOException {
+        upload(0);
+        assertArrayEquals(mData, mServer.getResource(PATH));
+        assertNull(mServer.getResource(PATH + ".part"));
+        assertEquals(6, mCheckpoints.size());
+        assertEquals(mData.length, getLastCheckpoint());
+        assertEquals(1, mServer.getCompletedWrites(PATH));
+    }
+
+    @Test
+    public void failedChunkIsResumed() throws IOException {
+        try {
+            mUpload.upload(mFile, mServer.getUrl(PATH), null, 0, offset -> {
+                mCheckpoints.add(offset);
+                if (offset == 2 * CHUNK_SIZE) mServer.failNextRequests(1, 503);
+            });
+            fail("third chunk has failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(2 * CHUNK_SIZE, getLastCheckpoint());
+        assertNull(mServer.getResource(PATH));
+
+        long received = mServer.getBytesReceived();
+        upload(getLastCheckpoint());
+        assertArrayEquals(mData, mServer.getResource(PATH));
+        // Chunks before the checkpoint are not sent again
+        assertEquals(mData.length - 2 * CHUNK_SIZE, mServer.getBytesReceived() - received);
+        assertEquals(1, mServer.getCompletedWrites(PATH));
+    }
+
+    @Test
+    public void droppedConnectionIsRetriedByTheClient() throws IOException {
+        mUpload.upload(mFile, mServer.getUrl(PATH), null, 0, offset -> {
+            mCheckpoints.add(offset);
+            if (offset == 3 * CHUNK_SIZE) mServer.dropNextChunks(1);
+        });
+        assertArrayEquals(mData, mServer.getResource(PATH));
+        assertEquals(6, mCheckpoints.size());
+        // Half of the dropped chunk was received before the connection has been closed
+        assertEquals(mData.length + CHUNK_SIZE / 2, mServer.getBytesReceived());
+        assertEquals(1, mServer.getCompletedWrites(PATH));
+    }
+
+    @Test
+    public void serverLostTheEndOfTheUpload() throws IOException {
+        mServer.putResource(PATH + ".part", Arrays.copyOf(mData, CHUNK_SIZE));
+
+        // The journal says 4 chunks are stored, the server has only the first one
+        upload(4 * CHUNK_SIZE);
+        assertArrayEquals(mData, mServer.getResource(PATH));
+        assertEquals(2 * CHUNK_SIZE, (long) mCheckpoints.get(0));
+    }
+
+    @Test
+    public void failedSizeRequestKeepsTheStoredChunks() throws IOException {
+        mServer.putResource(PATH + ".part", Arrays.copyOf(mData, 2 * CHUNK_SIZE));
+        mServer.failNextRequests(1, 503);
+        try {
+            upload(2 * CHUNK_SIZE);
+            fail("size request has failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, mServer.getBytesReceived());
+
+        upload(2 * CHUNK_SIZE);
+        assertArrayEquals(mData, mServer.getResource(PATH));
+        assertEquals(mData.length - 2 * CHUNK_SIZE, mServer.getBytesReceived());
+    }
+
+    @Test
+    public void failedSizeCheckBeforeMoveIsRetried() throws IOException {
+        try {
+            mUpload.upload(mFile, mServer.getUrl(PATH), null, 0, offset -> {
+                mCheckpoints.add(offset);
+                if (offset == mData.length) mServer.failNextRequests(1, 503);
+            });
+            fail("size check has failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNull(mServer.getResource(PATH));
+
+        long received = mServer.getBytesReceived();
+        upload(getLastCheckpoint());
+        assertArrayEquals(mData, mServer.getResource(PATH));
+        // The complete temporary resource is moved, not sent again
+        assertEquals(received, mServer.getBytesReceived());
+        assertEquals(1, mServer.getCompletedWrites(PATH));
+    }
+
+    @Test
+    public void partialPutNotSupported() throws IOException {
+        mServer.setPartialPutSupported(false);
+        upload(0);
+        assertArrayEquals(mData, mServer.getResource(PATH));
+        assertEquals(Arrays.asList((long) mData.length), mCheckpoints);
+        assertEquals(1, mServer.getCompletedWrites(PATH));
+    }
+
+    @Test
+    public void contentRangeIgnored() throws IOException {
+        mServer.setContentRangeIgnored(true);
+        upload(0);
+        assertArrayEquals(mData, mServer.getResource(PATH));
+        assertNull(mServer.getResource(PATH + ".part"));
+        assertEquals(mData.length, getLastCheckpoint());
+    }
+}
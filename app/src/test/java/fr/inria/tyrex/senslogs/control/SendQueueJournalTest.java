@@ -0,0 +1,186 @@
+package fr.inria.tyrex.senslogs.control;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SendQueueJournalTest {
+
+    private File mFile;
+    // Items of the queue not acknowledged, as seen by the journal
+    private Map<Long, SendQueue.Item> mPendingItems;
+    private SendQueueJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("send-queue", ".journal");
+        assertTrue(mFile.delete());
+        mPendingItems = new LinkedHashMap<>();
+        mJournal = new SendQueueJournal(mFile, () -> new ArrayList<>(mPendingItems.values()));
+    }
+
+    @After
+    public void tearDown() {
+        mJournal.close();
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    // Add an item as the queue does, in the pending items first
+    private SendQueue.Item add(long id, SendQueue.Kind kind, String value) {
+        SendQueue.Item item = new SendQueue.Item();
+        item.id = id;
+        item.kind = kind;
+        item.value = value;
+        mPendingItems.put(id, item);
+        mJournal.append(item);
+        return item;
+    }
+
+    private void acknowledge(long id) {
+        mPendingItems.remove(id);
+        mJournal.acknowledge(id);
+    }
+
+    // Replay the journal as a new process would
+    private Map<Long, SendQueue.Item> reload() {
+        mJournal.close();
+        return new SendQueueJournal(mFile, ArrayList::new).load();
+    }
+
+    private int countRecords() throws IOException {
+        return Files.readAllLines(mFile.toPath()).size();
+    }
+
+    @Test
+    public void missingJournal() {
+        assertTrue(mJournal.load().isEmpty());
+    }
+
+    @Test
+    public void itemsAreReplayedInOrder() {
+        SendQueue.Item file = add(1, SendQueue.Kind.FILE, "/data/record-1.zip");
+        file.index = 1;
+        file.keep = true;
+        mJournal.append(file);
+        SendQueue.Item post = add(2, SendQueue.Kind.POST, "http://localhost/positions");
+        post.payload = "{\"x\":1}";
+        mJournal.append(post);
+        add(3, SendQueue.Kind.REQUEST, "http://localhost/ping");
+
+        Map<Long, SendQueue.Item> items = reload();
+        assertEquals(Arrays.asList(1L, 2L, 3L), new ArrayList<>(items.keySet()));
+        assertEquals(SendQueue.Kind.FILE, items.get(1L).kind);
+        assertEquals("/data/record-1.zip", items.get(1L).value);
+        assertEquals(1, items.get(1L).index);
+        assertTrue(items.get(1L).keep);
+        assertEquals("{\"x\":1}", items.get(2L).payload);
+        assertEquals(SendQueue.Kind.REQUEST, items.get(3L).kind);
+    }
+
+    @Test
+    public void acknowledgedItemsAreNotReplayed() {
+        add(1, SendQueue.Kind.REQUEST, "a");
+        add(2, SendQueue.Kind.REQUEST, "b");
+        add(3, SendQueue.Kind.REQUEST, "c");
+        acknowledge(2);
+
+        assertEquals(Arrays.asList(1L, 3L), new ArrayList<>(reload().keySet()));
+    }
+
+    @Test
+    public void lastCheckpointIsReplayed() {
+        add(1, SendQueue.Kind.FILE, "/data/record-1.zip");
+        mJournal.checkpoint(1, 4096);
+        mJournal.checkpoint(1, 8192);
+        // Checkpoint of an acknowledged item is ignored
+        mJournal.checkpoint(5, 1024);
+
+        Map<Long, SendQueue.Item> items = reload();
+        assertEquals(1, items.size());
+        assertEquals(8192, items.get(1L).uploadedBytes);
+    }
+
+    @Test
+    public void compactKeepsPendingItemsOnly() throws IOException {
+        add(1, SendQueue.Kind.REQUEST, "a");
+        add(2, SendQueue.Kind.REQUEST, "b");
+        SendQueue.Item file = add(3, SendQueue.Kind.FILE, "/data/record-3.zip");
+        acknowledge(1);
+        acknowledge(2);
+        file.uploadedBytes = 100;
+        mJournal.checkpoint(3, 100);
+
+        mJournal.compact();
+        assertEquals(1, countRecords());
+
+        Map<Long, SendQueue.Item> items = reload();
+        assertEquals(Arrays.asList(3L), new ArrayList<>(items.keySet()));
+        assertEquals(100, items.get(3L).uploadedBytes);
+    }
+
+    @Test
+    public void acknowledgementsTriggerCompaction() throws IOException {
+        for (long id = 1; id <= SendQueueJournal.COMPACTION_THRESHOLD + 1; id++) {
+            add(id, SendQueue.Kind.REQUEST, "r" + id);
+        }
+        for (long id = 1; id <= SendQueueJournal.COMPACTION_THRESHOLD; id++) {
+            acknowledge(id);
+        }
+
+        assertEquals(1, countRecords());
+        assertEquals(Arrays.asList(SendQueueJournal.COMPACTION_THRESHOLD + 1L),
+                new ArrayList<>(reload().keySet()));
+    }
+
+    @Test
+    public void compactionKeepsItemsNotAppendedYet() {
+        // The queue puts an item in its pending items before it is appended
+        SendQueue.Item item = new SendQueue.Item();
+        item.id = 1;
+        item.kind = SendQueue.Kind.REQUEST;
+        item.value = "a";
+        mPendingItems.put(item.id, item);
+
+        mJournal.compact();
+        mJournal.append(item);
+
+        assertEquals(Arrays.asList(1L), new ArrayList<>(reload().keySet()));
+    }
+
+    @Test
+    public void appendAfterCompaction() {
+        add(1, SendQueue.Kind.REQUEST, "a");
+        mJournal.compact();
+        add(2, SendQueue.Kind.REQUEST, "b");
+
+        assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(reload().keySet()));
+    }
+
+    @Test
+    public void truncatedRecordIsIgnored() throws IOException {
+        add(1, SendQueue.Kind.REQUEST, "a");
+        add(2, SendQueue.Kind.REQUEST, "b");
+        mJournal.close();
+
+        // The process has been killed while the last record was written
+        try (Writer writer = new FileWriter(mFile, true)) {
+            writer.write("{\"item\":{\"id\":3,\"kind\":\"REQ");
+        }
+
+        assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(reload().keySet()));
+    }
+}
@@ -0,0 +1,245 @@
+package fr.inria.tyrex.senslogs.control;
+
+import com.thegrizzlylabs.sardineandroid.impl.OkHttpSardine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Flight recorder traffic sent to the stand-in server: archives of segments on a bulk worker and
+ * positions on a realtime worker, while the server is slow and fails from time to time.
+ * Uploads are retried from their last checkpoint as the send queue does. Delivery latency,
+ * retries, duplicate uploads and throughput are printed, they are the baseline of upload changes.
+ */
+public class UploadBenchmarkTest {
+
+    private final static int CHUNK_SIZE = 16 * 1024;
+    private final static int SEGMENTS = 8;
+    private final static int SEGMENT_SIZE = 3 * CHUNK_SIZE + 1000;
+    private final static int POSITIONS = 30;
+    private final static long POSITION_PERIOD_MS = 50;
+
+    private final static long LATENCY_MS = 10;
+    private final static long BANDWIDTH = 1024 * 1024;
+    private final static long FAILURE_PERIOD_MS = 150;
+    private final static long DROP_PERIOD_MS = 250;
+
+    private final static long RETRY_DELAY_MS = 20;
+    private final static int MAX_ATTEMPTS = 20;
+
+    private final static MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private WebDavStandIn mServer;
+    private OkHttpClient mClient;
+    private ResumableUpload mUpload;
+    private ScheduledExecutorService mFaults;
+    private final List<File> mSegments = new ArrayList<>();
+
+    private final AtomicInteger mRetries = new AtomicInteger();
+    private final List<Long> mSegmentLatencies = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> mPositionLatencies = Collections.synchronizedList(new ArrayList<>());
+
+    private interface Attempt {
+        void run(long[] checkpoint) throws IOException;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new WebDavStandIn();
+        mServer.setLatency(LATENCY_MS);
+        mServer.setBandwidth(BANDWIDTH);
+
+        mClient = new OkHttpClient();
+        OkHttpSardine sardine = new OkHttpSardine(mClient);
+        sardine.setCredentials("user", "password");
+        mUpload = new ResumableUpload(mClient, sardine, "user", "password", CHUNK_SIZE);
+
+        Random random = new Random(0);
+        for (int i = 0; i < SEGMENTS; i++) {
+            byte[] data = new byte[SEGMENT_SIZE];
+            random.nextBytes(data);
+            File segment = File.createTempFile("segment-" + i + "-", ".zip");
+            Files.write(segment.toPath(), data);
+            mSegments.add(segment);
+        }
+
+        mFaults = Executors.newScheduledThreadPool(1);
+    }
+
+    @After
+    public void tearDown() {
+        mFaults.shutdownNow();
+        mServer.stop();
+        for (File segment : mSegments) {
+            segment.delete();
+        }
+    }
+
+    // Attempt until the item is delivered, the checkpoint is kept between attempts
+    private void deliver(long enqueueTime, List<Long> latencies, Attempt attempt)
+            throws IOException, InterruptedException {
+        long[] checkpoint = {0};
+        for (int attempts = 1; ; attempts++) {
+            try {
+                attempt.run(checkpoint);
+                latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueueTime));
+                return;
+            } catch (IOException e) {
+                if (attempts == MAX_ATTEMPTS) throw e;
+                mRetries.incrementAndGet();
+                Thread.sleep(RETRY_DELAY_MS);
+            }
+        }
+    }
+
+    private void sendSegment(File segment, long enqueueTime) throws IOException, InterruptedException {
+        deliver(enqueueTime, mSegmentLatencies, checkpoint ->
+                mUpload.upload(segment, mServer.getUrl("/" + segment.getName()), "application/zip",
+                        checkpoint[0], offset -> checkpoint[0] = offset));
+    }
+
+    private void sendPosition(int index, long enqueueTime) throws IOException, InterruptedException {
+        byte[] body = gzip("{\"index\":" + index + ",\"latitude\":45.2,\"longitude\":5.7}");
+        deliver(enqueueTime, mPositionLatencies, checkpoint -> {
+            Request request = new Request.Builder()
+                    .url(mServer.getUrl("/positions"))
+                    .header("Content-Encoding", "gzip")
+                    .post(RequestBody.create(JSON, body))
+                    .build();
+            try (Response response = mClient.newCall(request).execute()) {
+                if (!response.isSuccessful()) {
+                    throw new IOException("Unexpected response " + response.code());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void flightRecorderTraffic() throws Exception {
+        mFaults.scheduleAtFixedRate(() -> mServer.failNextRequests(1, 503),
+                FAILURE_PERIOD_MS, FAILURE_PERIOD_MS, TimeUnit.MILLISECONDS);
+        mFaults.scheduleAtFixedRate(() -> mServer.dropNextChunks(1),
+                DROP_PERIOD_MS, DROP_PERIOD_MS, TimeUnit.MILLISECONDS);
+
+        ExecutorService bulk = Executors.newSingleThreadExecutor();
+        ExecutorService realtime = Executors.newSingleThreadExecutor();
+        List<Future<?>> deliveries = new ArrayList<>();
+        long startTime = System.nanoTime();
+        try {
+            // Segments are all queued at once, as after a flight recorder rotation
+            for (File segment : mSegments) {
+                long enqueueTime = System.nanoTime();
+                deliveries.add(bulk.submit(() -> {
+                    sendSegment(segment, enqueueTime);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < POSITIONS; i++) {
+                int index = i;
+                long enqueueTime = System.nanoTime();
+                deliveries.add(realtime.submit(() -> {
+                    sendPosition(index, enqueueTime);
+                    return null;
+                }));
+                Thread.sleep(POSITION_PERIOD_MS);
+            }
+            for (Future<?> delivery : deliveries) {
+                delivery.get();
+            }
+        } finally {
+            bulk.shutdownNow();
+            realtime.shutdownNow();
+        }
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+        mFaults.shutdownNow();
+
+        for (File segment : mSegments) {
+            assertArrayEquals(Files.readAllBytes(segment.toPath()),
+                    mServer.getResource("/" + segment.getName()));
+        }
+        Set<String> positions = new HashSet<>();
+        int duplicatePositions = 0;
+        for (byte[] post : mServer.getPosts()) {
+            if (!positions.add(gunzip(post))) duplicatePositions++;
+        }
+        assertEquals(POSITIONS, positions.size());
+        assertEquals(0, mServer.getDuplicateWrites());
+
+        long fileBytes = (long) SEGMENTS * SEGMENT_SIZE;
+        System.out.println(String.format(Locale.US,
+                "UploadBenchmark: %d segments, %d positions in %.2f s, " +
+                        "segment latency avg %d ms max %d ms, position latency avg %d ms max %d ms, " +
+                        "%d retries, %d duplicate archives, %d duplicate positions, " +
+                        "%.1f KB/s of archives, %d bytes sent for %d (%.1f%% overhead), %d requests",
+                SEGMENTS, POSITIONS, elapsedSeconds,
+                average(mSegmentLatencies), Collections.max(mSegmentLatencies),
+                average(mPositionLatencies), Collections.max(mPositionLatencies),
+                mRetries.get(), mServer.getDuplicateWrites(), duplicatePositions,
+                fileBytes / 1024. / elapsedSeconds,
+                mServer.getBytesReceived(), fileBytes,
+                100. * (mServer.getBytesReceived() - fileBytes) / fileBytes,
+                mServer.getRequests()));
+    }
+
+    private static long average(List<Long> values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return values.isEmpty() ? 0 : sum / values.size();
+    }
+
+    private static byte[] gzip(String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream output = new GZIPOutputStream(bytes)) {
+            output.write(value.getBytes(Charset.forName("UTF-8")));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String gunzip(byte[] value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(value))) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return new String(bytes.toByteArray(), Charset.forName("UTF-8"));
+    }
+}
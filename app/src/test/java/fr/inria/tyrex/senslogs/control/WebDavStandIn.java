@@ -0,0 +1,318 @@
+package fr.inria.tyrex.senslogs.control;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local WebDAV server used in place of the real one: PUT, partial PUT with Content-Range, HEAD,
+ * MOVE, DELETE and POST. Latency, bandwidth and failures can be configured while it runs.
+ */
+class WebDavStandIn {
+
+    private final static Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    // Resources by path
+    private final Map<String, byte[]> mResources = new HashMap<>();
+    // Number of times a resource has been written completely, by path
+    private final Map<String, Integer> mCompletedWrites = new HashMap<>();
+    // Bodies of POST requests
+    private final List<byte[]> mPosts = new ArrayList<>();
+
+    private volatile long mLatencyMs;
+    private volatile long mBytesPerSecond;
+    private volatile boolean mPartialPutSupported = true;
+    private volatile boolean mContentRangeIgnored;
+
+    // Next requests answered with an error code
+    private final AtomicInteger mFailures = new AtomicInteger();
+    private volatile int mFailureCode = 503;
+    // Next partial PUTs whose connection is closed once half of the chunk is received
+    private final AtomicInteger mDroppedChunks = new AtomicInteger();
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    WebDavStandIn() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    String getUrl(String path) {
+        return "http://" + mServer.getAddress().getHostString() + ":" +
+                mServer.getAddress().getPort() + path;
+    }
+
+    /**
+     * Delay before each response
+     */
+    void setLatency(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * Request bodies are read at this rate, 0 for no limit
+     */
+    void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * A server without partial PUT answers 501 to a PUT with Content-Range
+     */
+    void setPartialPutSupported(boolean supported) {
+        mPartialPutSupported = supported;
+    }
+
+    /**
+     * A server which ignores Content-Range replaces the resource with each chunk
+     */
+    void setContentRangeIgnored(boolean ignored) {
+        mContentRangeIgnored = ignored;
+    }
+
+    void failNextRequests(int count, int code) {
+        mFailureCode = code;
+        mFailures.set(count);
+    }
+
+    void dropNextChunks(int count) {
+        mDroppedChunks.set(count);
+    }
+
+    synchronized byte[] getResource(String path) {
+        return mResources.get(path);
+    }
+
+    synchronized void putResource(String path, byte[] content) {
+        mResources.put(path, content);
+    }
+
+    synchronized int getCompletedWrites(String path) {
+        Integer writes = mCompletedWrites.get(path);
+        return writes == null ? 0 : writes;
+    }
+
+    /**
+     * Resources written more than once
+     */
+    synchronized int getDuplicateWrites() {
+        int duplicates = 0;
+        for (int writes : mCompletedWrites.values()) {
+            duplicates += writes - 1;
+        }
+        return duplicates;
+    }
+
+    synchronized List<byte[]> getPosts() {
+        return new ArrayList<>(mPosts);
+    }
+
+    int getRequests() {
+        return mRequests.get();
+    }
+
+    long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            mRequests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+
+            if (mFailures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+                readBody(exchange, Long.MAX_VALUE);
+                respond(exchange, mFailureCode);
+                return;
+            }
+
+            switch (method) {
+                case "PUT":
+                    if (contentRange == null || mContentRangeIgnored) {
+                        put(exchange, path);
+                    } else if (!mPartialPutSupported) {
+                        readBody(exchange, Long.MAX_VALUE);
+                        respond(exchange, 501);
+                    } else {
+                        putRange(exchange, path, contentRange);
+                    }
+                    break;
+                case "HEAD":
+                    head(exchange, path);
+                    break;
+                case "MOVE":
+                    move(exchange, path);
+                    break;
+                case "DELETE":
+                    byte[] resource;
+                    synchronized (this) {
+                        resource = mResources.remove(path);
+                    }
+                    respond(exchange, resource == null ? 404 : 204);
+                    break;
+                case "POST":
+                    byte[] body = readBody(exchange, Long.MAX_VALUE);
+                    synchronized (this) {
+                        mPosts.add(body);
+                    }
+                    respond(exchange, 200);
+                    break;
+                default:
+                    respond(exchange, 405);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void put(HttpExchange exchange, String path) throws IOException {
+        byte[] body = readBody(exchange, Long.MAX_VALUE);
+        synchronized (this) {
+            mResources.put(path, body);
+            if (!path.endsWith(".part")) {
+                onCompletedWrite(path);
+            }
+        }
+        respond(exchange, 201);
+    }
+
+    private void putRange(HttpExchange exchange, String path, String contentRange) throws IOException {
+        Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+        if (!matcher.matches()) {
+            readBody(exchange, Long.MAX_VALUE);
+            respond(exchange, 400);
+            return;
+        }
+        int start = Integer.parseInt(matcher.group(1));
+        int end = Integer.parseInt(matcher.group(2));
+
+        if (mDroppedChunks.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+            // Connection lost during the chunk, it is not stored and has no response
+            readBody(exchange, (end - start + 1) / 2);
+            return;
+        }
+
+        byte[] body = readBody(exchange, Long.MAX_VALUE);
+        boolean stored = false;
+        synchronized (this) {
+            byte[] resource = mResources.get(path);
+            int length = resource == null ? 0 : resource.length;
+            if (start <= length && body.length == end - start + 1) {
+                byte[] content = Arrays.copyOf(resource == null ? new byte[0] : resource, start + body.length);
+                System.arraycopy(body, 0, content, start, body.length);
+                mResources.put(path, content);
+                stored = true;
+            }
+        }
+        respond(exchange, stored ? 204 : 416);
+    }
+
+    private void head(HttpExchange exchange, String path) throws IOException {
+        byte[] resource = getResource(path);
+        if (resource == null) {
+            respond(exchange, 404);
+            return;
+        }
+        delay();
+        exchange.getResponseHeaders().set("Content-Length", String.valueOf(resource.length));
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void move(HttpExchange exchange, String path) throws IOException {
+        String destination = exchange.getRequestHeaders().getFirst("Destination");
+        if (destination == null) {
+            respond(exchange, 400);
+            return;
+        }
+        String destinationPath = URI.create(destination).getPath();
+        byte[] resource;
+        synchronized (this) {
+            resource = mResources.remove(path);
+            if (resource != null) {
+                mResources.put(destinationPath, resource);
+                onCompletedWrite(destinationPath);
+            }
+        }
+        respond(exchange, resource == null ? 404 : 201);
+    }
+
+    private void onCompletedWrite(String path) {
+        mCompletedWrites.put(path, getCompletedWrites(path) + 1);
+    }
+
+    // Read at most limit bytes of the body at the configured bandwidth
+    private byte[] readBody(HttpExchange exchange, long limit) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        long startTime = System.nanoTime();
+        try (InputStream input = exchange.getRequestBody()) {
+            int read;
+            while (body.size() < limit &&
+                    (read = input.read(buffer, 0, (int) Math.min(buffer.length, limit - body.size()))) > 0) {
+                body.write(buffer, 0, read);
+                mBytesReceived.addAndGet(read);
+                throttle(startTime, body.size());
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private void throttle(long startTime, long bytes) {
+        long bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond <= 0) return;
+        long expectedNanos = bytes * 1000000000L / bytesPerSecond;
+        long sleepNanos = expectedNanos - (System.nanoTime() - startTime);
+        if (sleepNanos > 0) {
+            sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+        }
+    }
+
+    private void delay() {
+        if (mLatencyMs > 0) {
+            sleep(mLatencyMs, 0);
+        }
+    }
+
+    private static void sleep(long millis, int nanos) {
+        try {
+            Thread.sleep(millis, nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void respond(HttpExchange exchange, int code) throws IOException {
+        delay();
+        exchange.sendResponseHeaders(code, -1);
+    }
+}
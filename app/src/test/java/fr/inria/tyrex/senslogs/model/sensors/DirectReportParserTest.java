@@ -0,0 +1,198 @@
+package fr.inria.tyrex.senslogs.model.sensors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DirectReportParserTest {
+
+    private final static int CAPACITY = 4;
+    private final static int TOKEN = 1;
+    // android.hardware.Sensor.TYPE_ACCELEROMETER
+    private final static int TYPE = 1;
+
+    private ByteBuffer mRing;
+    private List<Long> mTimestamps;
+    private DirectReportParser.Listener mListener;
+
+    @Before
+    public void setUp() {
+        mRing = ByteBuffer.allocate(CAPACITY * DirectReportParser.REPORT_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mTimestamps = new ArrayList<>();
+        mListener = (token, type, timestamp, values) -> {
+            assertEquals(TOKEN, token);
+            assertEquals(TYPE, type);
+            assertEquals((float) timestamp, values[0], 0f);
+            mTimestamps.add(timestamp);
+        };
+    }
+
+    // Write a report as the sensor hub does, its timestamp and first value are its counter
+    private static void writeReport(ByteBuffer ring, int slot, int counter) {
+        int offset = slot * DirectReportParser.REPORT_SIZE;
+        long timestamp = counter & 0xFFFFFFFFL;
+        ring.putInt(offset, DirectReportParser.REPORT_SIZE);
+        ring.putInt(offset + 4, TOKEN);
+        ring.putInt(offset + 8, TYPE);
+        ring.putInt(offset + 12, counter);
+        ring.putLong(offset + 16, timestamp);
+        ring.putFloat(offset + 24, timestamp);
+    }
+
+    // Write consecutive reports from a slot, counters skip 0
+    private static int writeReports(ByteBuffer ring, int firstSlot, int firstCounter, int count) {
+        int counter = firstCounter;
+        for (int i = 0; i < count; i++) {
+            writeReport(ring, (firstSlot + i) % CAPACITY, counter);
+            counter = counter + 1 == 0 ? 1 : counter + 1;
+        }
+        return counter;
+    }
+
+    private static List<Long> timestamps(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) list.add(value);
+        return list;
+    }
+
+    @Test
+    public void emptyRing() {
+        DirectReportParser parser = new DirectReportParser(CAPACITY);
+        assertEquals(0, parser.parse(mRing, mListener));
+        assertEquals(0, parser.getLostReports());
+    }
+
+    @Test
+    public void newReportsOnly() {
+        DirectReportParser parser = new DirectReportParser(CAPACITY);
+        writeReports(mRing, 0, 1, 3);
+        assertEquals(3, parser.parse(mRing, mListener));
+        assertEquals(0, parser.parse(mRing, mListener));
+
+        writeReport(mRing, 3, 4);
+        assertEquals(1, parser.parse(mRing, mListener));
+        assertEquals(timestamps(1, 2, 3, 4), mTimestamps);
+    }
+
+    @Test
+    public void ringWrapsAround() {
+        DirectReportParser parser = new DirectReportParser(CAPACITY);
+        writeReports(mRing, 0, 1, 4);
+        assertEquals(4, parser.parse(mRing, mListener));
+
+        writeReports(mRing, 0, 5, 2);
+        assertEquals(2, parser.parse(mRing, mListener));
+        assertEquals(timestamps(1, 2, 3, 4, 5, 6), mTimestamps);
+        assertEquals(0, parser.getLostReports());
+    }
+
+    @Test
+    public void overwrittenReportsAreLost() {
+        DirectReportParser parser = new DirectReportParser(CAPACITY);
+        writeReports(mRing, 0, 1, 2);
+        assertEquals(2, parser.parse(mRing, mListener));
+
+        // Reports 3 to 9 are written before the next poll, 3 to 5 are overwritten
+        writeReports(mRing, 2, 3, 7);
+        assertEquals(4, parser.parse(mRing, mListener));
+        assertEquals(timestamps(1, 2, 6, 7, 8, 9), mTimestamps);
+        assertEquals(3, parser.getLostReports());
+
+        writeReport(mRing, 1, 10);
+        assertEquals(1, parser.parse(mRing, mListener));
+        assertEquals(10L, (long) mTimestamps.get(mTimestamps.size() - 1));
+    }
+
+    @Test
+    public void counterWrapSkipsZero() {
+        DirectReportParser parser = new DirectReportParser(CAPACITY);
+
+        // Jump close to the wrap, each resync can only move forward by less than 2^31
+        int slot = 0;
+        for (int first : new int[]{0x40000000, 0x80000000, 0xC0000000, 0xFFFFFFFC}) {
+            writeReports(mRing, slot, first, CAPACITY);
+            assertEquals(CAPACITY, parser.parse(mRing, mListener));
+            slot = (slot + 1) % CAPACITY;
+        }
+        long lostBeforeWrap = parser.getLostReports();
+        assertEquals(0xFFFFFFFCL - 1 - 3 * CAPACITY, lostBeforeWrap);
+        mTimestamps.clear();
+
+        // Reports after 0xFFFFFFFF are 1, 2 and 3, written in the next slots
+        writeReports(mRing, (slot + CAPACITY - 1) % CAPACITY, 1, 3);
+        assertEquals(3, parser.parse(mRing, mListener));
+        assertEquals(timestamps(1, 2, 3), mTimestamps);
+        assertEquals(lostBeforeWrap, parser.getLostReports());
+    }
+
+    @Test
+    public void lostReportsAcrossTheWrap() {
+        DirectReportParser parser = new DirectReportParser(CAPACITY);
+        int slot = 0;
+        for (int first : new int[]{0x40000000, 0x80000000, 0xC0000000, 0xFFFFFFFA}) {
+            writeReports(mRing, slot, first, CAPACITY);
+            parser.parse(mRing, mListener);
+            slot = (slot + 1) % CAPACITY;
+        }
+        long lostBeforeWrap = parser.getLostReports();
+        mTimestamps.clear();
+
+        // 0xFFFFFFFE to 5 are written, 0 is skipped and 0xFFFFFFFE, 0xFFFFFFFF and 1 are overwritten
+        writeReports(mRing, (slot + CAPACITY - 1) % CAPACITY, 0xFFFFFFFE, 7);
+        assertEquals(4, parser.parse(mRing, mListener));
+        assertEquals(timestamps(2, 3, 4, 5), mTimestamps);
+        assertEquals(lostBeforeWrap + 3, parser.getLostReports());
+    }
+
+    @Test
+    public void tornReadIsDropped() {
+        // The sensor hub writes report 5 over report 1 while it is read
+        DirectReportParser parser = new DirectReportParser(CAPACITY) {
+            private boolean mWritten;
+
+            @Override
+            void readReport(ByteBuffer ring, int offset) {
+                super.readReport(ring, offset);
+                if (!mWritten) {
+                    mWritten = true;
+                    writeReport(ring, 0, 5);
+                }
+            }
+        };
+        writeReports(mRing, 0, 1, 4);
+        assertEquals(4, parser.parse(mRing, mListener));
+        assertEquals(timestamps(2, 3, 4, 5), mTimestamps);
+        assertEquals(1, parser.getLostReports());
+    }
+
+    @Test
+    public void partialReportIsNotRead() {
+        DirectReportParser parser = new DirectReportParser(CAPACITY);
+        writeReports(mRing, 0, 1, 2);
+        // Counter is written before the size of the slot is set
+        mRing.putInt(DirectReportParser.REPORT_SIZE * 2 + 12, 7);
+        assertEquals(2, parser.parse(mRing, mListener));
+        assertEquals(0, parser.getLostReports());
+    }
+
+    @Test
+    public void resetStartsFromTheFirstReport() {
+        DirectReportParser parser = new DirectReportParser(CAPACITY);
+        writeReports(mRing, 0, 1, 3);
+        parser.parse(mRing, mListener);
+
+        parser.reset();
+        Arrays.fill(mRing.array(), (byte) 0);
+        writeReports(mRing, 0, 1, 2);
+        assertEquals(2, parser.parse(mRing, mListener));
+        assertEquals(timestamps(1, 2, 3, 1, 2), mTimestamps);
+    }
+}
@@ -0,0 +1,156 @@
+package fr.inria.tyrex.senslogs.model.sensors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NmeaParserTest {
+
+    private final static double DELTA = 1e-9;
+
+    private NmeaParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new NmeaParser();
+    }
+
+    // Add the checksum of the characters between '$' and '*'
+    private static String withChecksum(String body) {
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        return String.format("$%s*%02X\r\n", body, checksum);
+    }
+
+    @Test
+    public void parseGga() {
+        assertTrue(mParser.parse("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47"));
+        assertEquals(NmeaParser.TYPE_GGA, mParser.getType());
+        assertEquals(12 * 3600 + 35 * 60 + 19, mParser.getTime(), DELTA);
+        assertEquals(48 + 7.038 / 60, mParser.getLatitude(), DELTA);
+        assertEquals(11 + 31.0 / 60, mParser.getLongitude(), DELTA);
+        assertEquals(1, mParser.getFix());
+        assertEquals(8, mParser.getSatellites());
+        assertEquals(0.9, mParser.getHdop(), DELTA);
+        assertEquals(545.4, mParser.getAltitude(), DELTA);
+        assertEquals(NmeaParser.NO_VALUE, mParser.getDate());
+    }
+
+    @Test
+    public void parseRmc() {
+        assertTrue(mParser.parse("$GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A"));
+        assertEquals(NmeaParser.TYPE_RMC, mParser.getType());
+        assertEquals(1, mParser.getFix());
+        assertEquals(22.4 * 1852 / 3600, mParser.getSpeed(), DELTA);
+        assertEquals(84.4, mParser.getCourse(), DELTA);
+        assertEquals(19940323, mParser.getDate());
+    }
+
+    @Test
+    public void parseSouthWest() {
+        assertTrue(mParser.parse(withChecksum("GNRMC,000001.50,V,3351.000,S,15112.000,W,,,010120,,,N")));
+        assertEquals(1.5, mParser.getTime(), DELTA);
+        assertEquals(0, mParser.getFix());
+        assertEquals(-(33 + 51.0 / 60), mParser.getLatitude(), DELTA);
+        assertEquals(-(151 + 12.0 / 60), mParser.getLongitude(), DELTA);
+        assertEquals(20200101, mParser.getDate());
+    }
+
+    @Test
+    public void parseGsa() {
+        assertTrue(mParser.parse("$GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1*39"));
+        assertEquals(NmeaParser.TYPE_GSA, mParser.getType());
+        assertEquals(3, mParser.getFix());
+        assertEquals(5, mParser.getSatellitesCount());
+        assertEquals(4, mParser.getPrn(0));
+        assertEquals(24, mParser.getPrn(4));
+        assertEquals(2.5, mParser.getPdop(), DELTA);
+        assertEquals(1.3, mParser.getHdop(), DELTA);
+        assertEquals(2.1, mParser.getVdop(), DELTA);
+    }
+
+    @Test
+    public void parseGsv() {
+        assertTrue(mParser.parse("$GPGSV,2,1,08,01,40,083,46,02,17,308,41,12,07,344,39,14,22,228,45*75"));
+        assertEquals(NmeaParser.TYPE_GSV, mParser.getType());
+        assertEquals(8, mParser.getSatellites());
+        assertEquals(4, mParser.getSatellitesCount());
+        assertEquals(1, mParser.getPrn(0));
+        assertEquals(40, mParser.getElevation(0));
+        assertEquals(83, mParser.getAzimuth(0));
+        assertEquals(46, mParser.getSnr(0));
+        assertEquals(14, mParser.getPrn(3));
+        assertEquals(45, mParser.getSnr(3));
+    }
+
+    @Test
+    public void parseGsvWithSignalId() {
+        // NMEA 4.10 adds a signal id after the satellites
+        assertTrue(mParser.parse(withChecksum("GLGSV,3,3,09,88,10,200,,1")));
+        assertEquals(9, mParser.getSatellites());
+        assertEquals(1, mParser.getSatellitesCount());
+        assertEquals(88, mParser.getPrn(0));
+        assertEquals(NmeaParser.NO_VALUE, mParser.getSnr(0));
+    }
+
+    @Test
+    public void badChecksum() {
+        assertFalse(mParser.parse("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*48"));
+        assertFalse(mParser.isChecksumValid());
+        assertEquals(NmeaParser.TYPE_UNKNOWN, mParser.getType());
+        assertTrue(Double.isNaN(mParser.getLatitude()));
+    }
+
+    @Test
+    public void missingChecksum() {
+        assertFalse(mParser.parse("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,"));
+    }
+
+    @Test
+    public void emptyFields() {
+        assertTrue(mParser.parse(withChecksum("GPGGA,,,,,,0,,,,,,,,")));
+        assertEquals(NmeaParser.TYPE_GGA, mParser.getType());
+        assertTrue(Double.isNaN(mParser.getTime()));
+        assertTrue(Double.isNaN(mParser.getLatitude()));
+        assertTrue(Double.isNaN(mParser.getAltitude()));
+        assertEquals(0, mParser.getFix());
+        assertEquals(NmeaParser.NO_VALUE, mParser.getSatellites());
+    }
+
+    @Test
+    public void truncatedSentence() {
+        assertTrue(mParser.parse(withChecksum("GPRMC,123519,A")));
+        assertEquals(1, mParser.getFix());
+        assertTrue(Double.isNaN(mParser.getLatitude()));
+    }
+
+    @Test
+    public void unknownSentence() {
+        assertTrue(mParser.parse(withChecksum("GPVTG,054.7,T,034.4,M,005.5,N,010.2,K")));
+        assertEquals(NmeaParser.TYPE_UNKNOWN, mParser.getType());
+    }
+
+    @Test
+    public void manyFractionDigits() {
+        String sentence = "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.0000000000000000000,545.4,M,46.9,M,,*4E";
+        assertTrue(mParser.parse(sentence));
+        assertEquals(0, mParser.getHdop(), DELTA);
+
+        assertTrue(mParser.parse(withChecksum(
+                "GPGGA,123519,4807.038,N,01131.000,E,1,08,0.12345678901234567890123,545.4,M,46.9,M,,")));
+        assertEquals(0.123456789012345678, mParser.getHdop(), DELTA);
+    }
+
+    @Test
+    public void stateIsClearedBetweenSentences() {
+        mParser.parse("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47");
+        mParser.parse("$GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1*39");
+        assertTrue(Double.isNaN(mParser.getLatitude()));
+        assertTrue(Double.isNaN(mParser.getAltitude()));
+    }
+}